@@ -12,12 +12,15 @@ import function.plugin.mechanism.OutputMarker;
 import function.plugin.mechanism.ParameterMarker;
 import ij.ImagePlus;
 import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
 
 import java.io.File;
 import java.util.TreeMap;
 
 import jex.statics.JEXStatics;
 import jex.utilities.FunctionUtility;
+import plugins.adjustHelpers.AdjustLookupTable;
+import plugins.parallelHelpers.PlaneExecutor;
 
 import org.scijava.plugin.Plugin;
 
@@ -71,6 +74,12 @@ public class CTC_AdjustImage extends JEXPlugin {
 	@ParameterMarker(uiOrder=6, name="Output Bit Depth", description="Depth of the outputted image", ui=MarkerConstants.UI_DROPDOWN, choices={ "8", "16", "32" }, defaultChoice=1)
 	int bitDepth;
 	
+	@ParameterMarker(uiOrder=7, name="Use Lookup Table?", description="Adjust 8- and 16-bit images with a precomputed table from each input value to the output value (same result, one pass, no float conversion).", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=true)
+	boolean useLookupTable;
+	
+	@ParameterMarker(uiOrder=8, name="Plane Threads", description="Number of images of the object processed at the same time within each entry (1 = one after the other).", ui=MarkerConstants.UI_TEXTFIELD, defaultText="1")
+	int planeThreads;
+	
 	/////////// Define Outputs ///////////
 	
 	@OutputMarker(uiOrder=1, name="Adjusted Image", type=MarkerConstants.TYPE_IMAGE, flavor="", description="The resultant adjusted image", enabled=true)
@@ -93,20 +102,38 @@ public class CTC_AdjustImage extends JEXPlugin {
 		}
 		
 		// Run the function
-		TreeMap<DimensionMap,String> imageMap = ImageReader.readObjectToImagePathTable(imageData);
+		final TreeMap<DimensionMap,String> imageMap = ImageReader.readObjectToImagePathTable(imageData);
 		TreeMap<DimensionMap,String> outputImageMap = new TreeMap<DimensionMap,String>();
-		int count = 0, percentage = 0;
-		String tempPath;
-		for (DimensionMap map : imageMap.keySet())
+		if(planeThreads > 1)
+		{
+			outputImageMap = new PlaneExecutor(planeThreads).run(imageMap.keySet(), new PlaneExecutor.PlaneFunction() {
+
+				@Override
+				public String process(DimensionMap map)
+				{
+					return saveAdjustedImage(imageMap.get(map), oldMin, oldMax, newMin, newMax, gamma, bitDepth, useLookupTable);
+				}
+			}, this);
+			if(outputImageMap == null)
+			{
+				return false;
+			}
+		}
+		else
 		{
-			tempPath = saveAdjustedImage(imageMap.get(map), oldMin, oldMax, newMin, newMax, gamma, bitDepth);
-			if(tempPath != null)
+			int count = 0, percentage = 0;
+			String tempPath;
+			for (DimensionMap map : imageMap.keySet())
 			{
-				outputImageMap.put(map, tempPath);
+				tempPath = saveAdjustedImage(imageMap.get(map), oldMin, oldMax, newMin, newMax, gamma, bitDepth, useLookupTable);
+				if(tempPath != null)
+				{
+					outputImageMap.put(map, tempPath);
+				}
+				count = count + 1;
+				percentage = (int) (100 * ((double) (count) / ((double) imageMap.size())));
+				JEXStatics.statusBar.setProgressPercentage(percentage);
 			}
-			count = count + 1;
-			percentage = (int) (100 * ((double) (count) / ((double) imageMap.size())));
-			JEXStatics.statusBar.setProgressPercentage(percentage);
 		}
 		if(outputImageMap.size() == 0)
 		{
@@ -120,6 +147,11 @@ public class CTC_AdjustImage extends JEXPlugin {
 	}
 	
 	public static String saveAdjustedImage(String imagePath, double oldMin, double oldMax, double newMin, double newMax, double gamma, int bitDepth)
+	{
+		return saveAdjustedImage(imagePath, oldMin, oldMax, newMin, newMax, gamma, bitDepth, false);
+	}
+	
+	public static String saveAdjustedImage(String imagePath, double oldMin, double oldMax, double newMin, double newMax, double gamma, int bitDepth, boolean useLookupTable)
 	{
 		// Get image data
 		File f = new File(imagePath);
@@ -128,6 +160,14 @@ public class CTC_AdjustImage extends JEXPlugin {
 			return null;
 		}
 		ImagePlus im = new ImagePlus(imagePath);
+		if(useLookupTable && AdjustLookupTable.isSupported(im.getProcessor()))
+		{
+			// Straight from the source pixels to the output pixels
+			ImageProcessor adjusted = AdjustLookupTable.adjust(im.getProcessor(), oldMin, oldMax, newMin, newMax, gamma, bitDepth);
+			String imPath = JEXWriter.saveImage(adjusted);
+			im.flush();
+			return imPath;
+		}
 		FloatProcessor imp = (FloatProcessor) im.getProcessor().convertToFloat(); // should be a float processor
 		
 		// Adjust the image
@@ -0,0 +1,175 @@
+package plugins;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.util.TreeMap;
+
+import org.scijava.plugin.Plugin;
+
+import jex.statics.JEXDialog;
+import plugins.calculatorHelpers.ImageExpression;
+import plugins.parallelHelpers.PlaneExecutor;
+import tables.DimensionMap;
+import Database.DBObjects.JEXData;
+import Database.DBObjects.JEXEntry;
+import Database.DataReader.ImageReader;
+import Database.DataWriter.ImageWriter;
+import Database.SingleUserDatabase.JEXWriter;
+import function.plugin.mechanism.InputMarker;
+import function.plugin.mechanism.JEXPlugin;
+import function.plugin.mechanism.MarkerConstants;
+import function.plugin.mechanism.OutputMarker;
+import function.plugin.mechanism.ParameterMarker;
+
+/**
+ * Pixel-wise expression over up to four image objects (see ImageExpression).
+ * Objects with a single image are used with every image of the others.
+ *
+ */
+@Plugin(
+		type = JEXPlugin.class,
+		name="CTC - Expression Calculator",
+		menuPath="CTC Toolbox",
+		visible=true,
+		description="Perform pixel-to-pixel math on up to four images with an expression such as (A - 0.5*B) / max(C, 1).")
+public class CTC_ExpressionCalculator extends JEXPlugin {
+
+	public CTC_ExpressionCalculator() {}
+
+	/////////// Define Inputs ///////////
+
+	@InputMarker(uiOrder=1, name="Image A", type=MarkerConstants.TYPE_IMAGE, description="", optional=false)
+	JEXData imageAData;
+
+	@InputMarker(uiOrder=2, name="Image B", type=MarkerConstants.TYPE_IMAGE, description="", optional=true)
+	JEXData imageBData;
+
+	@InputMarker(uiOrder=3, name="Image C", type=MarkerConstants.TYPE_IMAGE, description="", optional=true)
+	JEXData imageCData;
+
+	@InputMarker(uiOrder=4, name="Image D", type=MarkerConstants.TYPE_IMAGE, description="", optional=true)
+	JEXData imageDData;
+
+	/////////// Define Parameters ///////////
+
+	@ParameterMarker(uiOrder=0, name="Expression", description="Expression of the images A-D using numbers, + - * / ^, parentheses, min(a,b), max(a,b), pow(a,b), abs(a), sqrt(a), exp(a) and log(a).", ui=MarkerConstants.UI_TEXTFIELD, defaultText="A-B")
+	String expression;
+
+	@ParameterMarker(uiOrder=1, name="Output Bit-Depth", description="Bit-Depth of the output image", ui=MarkerConstants.UI_DROPDOWN, choices={"8","16","32"}, defaultChoice=2)
+	int bitDepth;
+
+	@ParameterMarker(uiOrder=2, name="Plane Threads", description="Number of images of the objects processed at the same time within each entry (large images are also split across cores).", ui=MarkerConstants.UI_TEXTFIELD, defaultText="4")
+	int planeThreads;
+
+	/////////// Define Outputs ///////////
+
+	@OutputMarker(uiOrder=1, name="Calculated Image", type=MarkerConstants.TYPE_IMAGE, flavor="", description="", enabled=true)
+	JEXData output;
+
+	@Override
+	public int getMaxThreads()
+	{
+		return 10;
+	}
+
+	@Override
+	public boolean run(JEXEntry optionalEntry)
+	{
+		final ImageExpression exp;
+		JEXData[] datas = new JEXData[] { imageAData, imageBData, imageCData, imageDData };
+		try
+		{
+			exp = new ImageExpression(expression, datas.length);
+		}
+		catch (IllegalArgumentException e)
+		{
+			JEXDialog.messageDialog("Couldn't parse the expression: " + e.getMessage());
+			return false;
+		}
+
+		// Collect the inputs used by the expression
+		@SuppressWarnings("unchecked")
+		final TreeMap<DimensionMap,String>[] imageMaps = new TreeMap[datas.length];
+		final ImageProcessor[] singles = new ImageProcessor[datas.length];
+		TreeMap<DimensionMap,String> driver = null;
+		boolean constant = true;
+		for (int i = 0; i < datas.length; i++)
+		{
+			constant = constant && !exp.usesImage(i);
+		}
+		for (int i = 0; i < datas.length; i++)
+		{
+			// a constant expression still takes its size (and maps) from A
+			if(!exp.usesImage(i) && !(constant && i == 0))
+			{
+				continue;
+			}
+			if(datas[i] == null || !datas[i].getTypeName().getType().equals(JEXData.IMAGE))
+			{
+				JEXDialog.messageDialog("Image " + (char) ('A' + i) + " is used in the expression but is not set.");
+				return false;
+			}
+			imageMaps[i] = ImageReader.readObjectToImagePathTable(datas[i]);
+			if(imageMaps[i].size() == 1)
+			{
+				// read once and used for every plane (only read)
+				singles[i] = new ImagePlus(imageMaps[i].firstEntry().getValue()).getProcessor();
+			}
+			else if(driver == null)
+			{
+				driver = imageMaps[i];
+			}
+		}
+		if(driver == null)
+		{
+			// all single images
+			for (int i = 0; i < imageMaps.length && driver == null; i++)
+			{
+				driver = imageMaps[i];
+			}
+		}
+
+		// Run the function
+		TreeMap<DimensionMap,String> outputImageMap = new PlaneExecutor(planeThreads).run(driver.keySet(), new PlaneExecutor.PlaneFunction() {
+
+			@Override
+			public String process(DimensionMap map)
+			{
+				ImageProcessor[] images = new ImageProcessor[imageMaps.length];
+				for (int i = 0; i < imageMaps.length; i++)
+				{
+					if(singles[i] != null)
+					{
+						images[i] = singles[i];
+					}
+					else if(imageMaps[i] != null)
+					{
+						String path = imageMaps[i].get(map);
+						if(path == null)
+						{
+							return null;
+						}
+						images[i] = new ImagePlus(path).getProcessor();
+					}
+				}
+				ImageProcessor toSave = exp.evaluate(images, bitDepth);
+				if(toSave == null)
+				{
+					return null;
+				}
+				return JEXWriter.saveImage(toSave);
+			}
+		}, this);
+
+		if(outputImageMap == null || outputImageMap.size() == 0)
+		{
+			return false;
+		}
+
+		this.output = ImageWriter.makeImageStackFromPaths("temp", outputImageMap);
+
+		// Return status
+		return true;
+	}
+}
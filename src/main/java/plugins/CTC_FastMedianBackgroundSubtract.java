@@ -13,10 +13,14 @@ import jex.utilities.FunctionUtility;
 
 import org.scijava.plugin.Plugin;
 
+import plugins.medianFilterHelpers.BandedMedianSubtracter;
+import plugins.medianFilterHelpers.BinnedMedianBackground;
 import tables.DimensionMap;
+import weka.core.converters.JEXTableWriter;
 import Database.DBObjects.JEXData;
 import Database.DBObjects.JEXEntry;
 import Database.DataReader.ImageReader;
+import Database.DataWriter.FileWriter;
 import Database.DataWriter.ImageWriter;
 import Database.SingleUserDatabase.JEXWriter;
 import function.plugin.mechanism.InputMarker;
@@ -60,11 +64,23 @@ public class CTC_FastMedianBackgroundSubtract extends JEXPlugin {
 	@ParameterMarker(uiOrder=1, name="Nominal Value to Add Back", description="Nominal value to add to all pixels after background subtraction because some image formats don't allow negative numbers.", ui=MarkerConstants.UI_TEXTFIELD, defaultText="100")
 	double nominal;
 	
+	@ParameterMarker(uiOrder=2, name="Multi-core?", description="Filter and subtract row bands of each image in parallel. The result is identical to filtering the whole image at once.", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=true)
+	boolean parallel;
+	
+	@ParameterMarker(uiOrder=3, name="Binning Factor", description="Estimate the background on the image binned by this factor (e.g., 4 or 8) with a proportionally smaller kernal and upsample it bilinearly. Much faster for large kernals. Use 1 to use the full resolution image.", ui=MarkerConstants.UI_TEXTFIELD, defaultText="1")
+	int binning;
+	
+	@ParameterMarker(uiOrder=4, name="Report Binning Error?", description="Also compute the full resolution median of each image and output the RMS difference between it and the binned background (slow, for choosing the binning factor).", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=false)
+	boolean reportError;
+	
 	/////////// Define Outputs ///////////
 	
 	@OutputMarker(uiOrder=1, name="Adjusted Image", type=MarkerConstants.TYPE_IMAGE, flavor="", description="The resultant adjusted image", enabled=true)
 	JEXData output;
 	
+	@OutputMarker(uiOrder=2, name="Binning Error", type=MarkerConstants.TYPE_FILE, flavor="", description="RMS difference between the binned and full resolution backgrounds of each image (only when reporting the binning error)", enabled=true)
+	JEXData outputError;
+	
 	@Override
 	public int getMaxThreads()
 	{
@@ -83,15 +99,39 @@ public class CTC_FastMedianBackgroundSubtract extends JEXPlugin {
 		// Run the function
 		TreeMap<DimensionMap,String> imageMap = ImageReader.readObjectToImagePathTable(imageData);
 		TreeMap<DimensionMap,String> outputImageMap = new TreeMap<DimensionMap,String>();
+		TreeMap<DimensionMap,Double> errorMap = new TreeMap<DimensionMap,Double>();
 		int count = 0, percentage = 0;
 		String tempPath;
 		for (DimensionMap map : imageMap.keySet())
 		{
 			// Call helper method
 			ImageProcessor ip = (new ImagePlus(imageMap.get(map))).getProcessor();
-			ImageProcessor ip2 = FastMedian.process(ip, kernalWidth);
-			ip2.subtract(nominal);
-			ip.copyBits(ip2, 0, 0, Blitter.SUBTRACT);
+			boolean done = false;
+			if(binning > 1)
+			{
+				BinnedMedianBackground background = new BinnedMedianBackground(ip, kernalWidth, binning);
+				if(reportError)
+				{
+					errorMap.put(map, background.getRMSError(FastMedian.process(ip, kernalWidth)));
+				}
+				background.subtract(ip, nominal);
+				done = true;
+			}
+			else if(parallel && BandedMedianSubtracter.isSupported(ip))
+			{
+				done = BandedMedianSubtracter.process(ip, kernalWidth, nominal);
+				if(!done)
+				{
+					// start over from the original image
+					ip = (new ImagePlus(imageMap.get(map))).getProcessor();
+				}
+			}
+			if(!done)
+			{
+				ImageProcessor ip2 = FastMedian.process(ip, kernalWidth);
+				ip2.subtract(nominal);
+				ip.copyBits(ip2, 0, 0, Blitter.SUBTRACT);
+			}
 			tempPath = JEXWriter.saveImage(ip);
 			if(tempPath != null)
 			{
@@ -107,6 +147,11 @@ public class CTC_FastMedianBackgroundSubtract extends JEXPlugin {
 		}
 		
 		this.output = ImageWriter.makeImageStackFromPaths("temp",outputImageMap);
+		if(errorMap.size() > 0)
+		{
+			String errorPath = JEXTableWriter.writeTable("temp", errorMap);
+			this.outputError = FileWriter.makeFileObject("temp", null, errorPath);
+		}
 		
 		// Return status
 		return true;
@@ -0,0 +1,208 @@
+package plugins;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.scijava.plugin.Plugin;
+
+import jex.statics.JEXDialog;
+import jex.statics.JEXStatics;
+import plugins.filterHelpers.FilterChain;
+import plugins.filterHelpers.FilterChain.Step;
+import tables.DimensionMap;
+import Database.DBObjects.JEXData;
+import Database.DBObjects.JEXEntry;
+import Database.DataReader.ImageReader;
+import Database.DataWriter.ImageWriter;
+import Database.SingleUserDatabase.JEXWriter;
+import function.plugin.mechanism.InputMarker;
+import function.plugin.mechanism.JEXPlugin;
+import function.plugin.mechanism.MarkerConstants;
+import function.plugin.mechanism.OutputMarker;
+import function.plugin.mechanism.ParameterMarker;
+
+/**
+ * Apply an ordered list of filter, adjust and arithmetic operations (see
+ * FilterChain) to each image in memory, reading each image once and writing
+ * only the final result (plus the intermediate steps that are asked for).
+ *
+ */
+
+@Plugin(
+		type = JEXPlugin.class,
+		name="CTC - Filter Chain",
+		menuPath="CTC Toolbox",
+		visible=true,
+		description="Apply a list of filter, adjust and image calculator operations to each image without saving the intermediate images."
+		)
+public class CTC_FilterChain extends JEXPlugin {
+
+	public static final String STEP = "Step";
+
+	public CTC_FilterChain()
+	{}
+
+	/////////// Define Inputs ///////////
+
+	@InputMarker(uiOrder=1, name="Image", type=MarkerConstants.TYPE_IMAGE, description="Image to be processed (A).", optional=false)
+	JEXData imageData;
+
+	@InputMarker(uiOrder=2, name="Image B", type=MarkerConstants.TYPE_IMAGE, description="Second image for calc(...) operations (a single image or one per image of A).", optional=true)
+	JEXData imageBData;
+
+	/////////// Define Parameters ///////////
+
+	@ParameterMarker(uiOrder=1, name="Operations", description="Operations separated by ';', applied in order: mean(r), min(r), max(r), median(r), variance(r), adjust(oldMin, oldMax, newMin, newMax, gamma), calc(A-B) (any Image Calculator operation using Image B), add(v), multiply(v)", ui=MarkerConstants.UI_TEXTFIELD, defaultText="median(2); adjust(0, 4095, 0, 65535, 1)")
+	String operations;
+
+	@ParameterMarker(uiOrder=2, name="Filter Engine", description="Engine for the rank filters (see CTC - Image Filters).", ui=MarkerConstants.UI_DROPDOWN, choices={ FilterChain.ENGINE_IMAGEJ, FilterChain.ENGINE_CIRCULAR, FilterChain.ENGINE_SQUARE }, defaultChoice=0)
+	String engine;
+
+	@ParameterMarker(uiOrder=3, name="Save Steps", description="Comma separated numbers of the steps (starting at 1) whose results should also be saved in the Intermediate Images output (leave blank to save none).", ui=MarkerConstants.UI_TEXTFIELD, defaultText="")
+	String stepsToSave;
+
+	@ParameterMarker(uiOrder=4, name="Output Bit-Depth", description="Bit-Depth of the output images", ui=MarkerConstants.UI_DROPDOWN, choices={ "8", "16", "32" }, defaultChoice=2)
+	int bitDepth;
+
+	/////////// Define Outputs ///////////
+
+	@OutputMarker(uiOrder=1, name="Processed Image", type=MarkerConstants.TYPE_IMAGE, flavor="", description="The result of all the operations", enabled=true)
+	JEXData output;
+
+	@OutputMarker(uiOrder=2, name="Intermediate Images", type=MarkerConstants.TYPE_IMAGE, flavor="", description="The results of the steps listed in Save Steps, with an additional 'Step' dimension", enabled=true)
+	JEXData outputIntermediate;
+
+	@Override
+	public int getMaxThreads()
+	{
+		return 10;
+	}
+
+	// ----------------------------------------------------
+	// --------- THE ACTUAL MEAT OF THIS FUNCTION ---------
+	// ----------------------------------------------------
+
+	@Override
+	public boolean run(JEXEntry optionalEntry)
+	{
+		// check image validation
+		if(imageData == null || !imageData.getTypeName().getType().equals(JEXData.IMAGE))
+		{
+			return false;
+		}
+
+		// Parse the operations
+		FilterChain chain;
+		TreeSet<Integer> saveSteps = new TreeSet<Integer>();
+		try
+		{
+			chain = new FilterChain(operations, engine);
+			for (String s : stepsToSave.split(","))
+			{
+				if(!s.trim().isEmpty())
+				{
+					saveSteps.add(Integer.parseInt(s.trim()));
+				}
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			JEXDialog.messageDialog("Couldn't parse the filter chain: " + e.getMessage());
+			return false;
+		}
+		if(chain.needsImageB() && (imageBData == null || !imageBData.getTypeName().getType().equals(JEXData.IMAGE)))
+		{
+			JEXDialog.messageDialog("The filter chain uses calc(...) operations but Image B is not set.");
+			return false;
+		}
+
+		// Run the function
+		TreeMap<DimensionMap,String> imageMap = ImageReader.readObjectToImagePathTable(imageData);
+		TreeMap<DimensionMap,String> imageBMap = chain.needsImageB() ? ImageReader.readObjectToImagePathTable(imageBData) : null;
+		FloatProcessor singleB = null;
+		if(imageBMap != null && imageBMap.size() == 1)
+		{
+			singleB = (FloatProcessor) new ImagePlus(imageBMap.firstEntry().getValue()).getProcessor().convertToFloat();
+		}
+		TreeMap<DimensionMap,String> outputImageMap = new TreeMap<DimensionMap,String>();
+		TreeMap<DimensionMap,String> intermediateMap = new TreeMap<DimensionMap,String>();
+		int count = 0, percentage = 0;
+		for (DimensionMap map : imageMap.keySet())
+		{
+			if(this.isCanceled())
+			{
+				return false;
+			}
+			FloatProcessor imageB = singleB;
+			if(imageBMap != null && singleB == null)
+			{
+				String pathB = imageBMap.get(map);
+				if(pathB == null)
+				{
+					continue;
+				}
+				imageB = (FloatProcessor) new ImagePlus(pathB).getProcessor().convertToFloat();
+			}
+
+			// //// Begin Actual Function
+			FloatProcessor ip = (FloatProcessor) new ImagePlus(imageMap.get(map)).getProcessor().convertToFloat();
+			int i = 1;
+			for (Step step : chain.getSteps())
+			{
+				ip = chain.apply(step, ip, imageB);
+				if(saveSteps.contains(i))
+				{
+					String path = JEXWriter.saveImage(this.convert(ip));
+					if(path != null)
+					{
+						DimensionMap stepMap = map.copy();
+						stepMap.put(STEP, "" + i);
+						intermediateMap.put(stepMap, path);
+					}
+				}
+				i++;
+			}
+			// //// End Actual Function
+
+			String path = JEXWriter.saveImage(this.convert(ip));
+			if(path != null)
+			{
+				outputImageMap.put(map, path);
+			}
+
+			count = count + 1;
+			percentage = (int) (100 * ((double) (count) / ((double) imageMap.size())));
+			JEXStatics.statusBar.setProgressPercentage(percentage);
+		}
+		if(outputImageMap.size() == 0)
+		{
+			return false;
+		}
+
+		this.output = ImageWriter.makeImageStackFromPaths("temp", outputImageMap);
+		if(intermediateMap.size() > 0)
+		{
+			this.outputIntermediate = ImageWriter.makeImageStackFromPaths("temp", intermediateMap);
+		}
+
+		// Return status
+		return true;
+	}
+
+	private ImageProcessor convert(FloatProcessor ip)
+	{
+		if(bitDepth == 8)
+		{
+			return ip.convertToByte(false);
+		}
+		else if(bitDepth == 16)
+		{
+			return ip.convertToShort(false);
+		}
+		return ip;
+	}
+}
@@ -2,6 +2,7 @@ package plugins;
 
 import ij.ImagePlus;
 import ij.plugin.filter.RankFilters;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
 import java.util.TreeMap;
@@ -9,6 +10,8 @@ import java.util.TreeMap;
 import org.scijava.plugin.Plugin;
 
 import jex.statics.JEXStatics;
+import plugins.filterHelpers.FastRankFilter;
+import plugins.parallelHelpers.PlaneExecutor;
 import tables.DimensionMap;
 import Database.DBObjects.JEXData;
 import Database.DBObjects.JEXEntry;
@@ -62,6 +65,12 @@ public class CTC_Filters extends JEXPlugin {
 	@ParameterMarker(uiOrder=3, name="Output Bit-Depth", description="Bit-Depth of the output image", ui=MarkerConstants.UI_DROPDOWN, choices={ "8", "16", "32" }, defaultChoice=2)
 	int bitDepth;
 	
+	@ParameterMarker(uiOrder=4, name="Filter Engine", description="'ImageJ RankFilters' runs one image at a time on a single core. The fast engines run on all cores with running sums (mean, variance), van Herk/Gil-Werman (min, max) and a sliding histogram (median, 8/16-bit data only, other data falls back to RankFilters) and convert to the output bit-depth in the same pass. 'Fast (circular)' uses the RankFilters kernel, 'Fast (square)' a square of side 2*radius+1 (fastest for large radii).", ui=MarkerConstants.UI_DROPDOWN, choices={ "ImageJ RankFilters", "Fast (circular)", "Fast (square)" }, defaultChoice=0)
+	String engine;
+	
+	@ParameterMarker(uiOrder=5, name="Plane Threads", description="Number of images of the object processed at the same time within each entry (1 = one after the other).", ui=MarkerConstants.UI_TEXTFIELD, defaultText="1")
+	int planeThreads;
+	
 	/////////// Define Outputs ///////////
 	
 	@OutputMarker(uiOrder=1, name="Filtered Image", type=MarkerConstants.TYPE_IMAGE, flavor="", description="The resultant filtered image", enabled=true)
@@ -89,26 +98,81 @@ public class CTC_Filters extends JEXPlugin {
 			return false;
 		
 		// Run the function
-		TreeMap<DimensionMap,String> imageMap = ImageReader.readObjectToImagePathTable(imageData);
+		final TreeMap<DimensionMap,String> imageMap = ImageReader.readObjectToImagePathTable(imageData);
 		TreeMap<DimensionMap,String> outputImageMap = new TreeMap<DimensionMap,String>();
-		int count = 0, percentage = 0;
-		for (DimensionMap map : imageMap.keySet())
+		if(planeThreads > 1)
 		{
-			if(this.isCanceled())
+			outputImageMap = new PlaneExecutor(planeThreads).run(imageMap.keySet(), new PlaneExecutor.PlaneFunction() {
+
+				@Override
+				public String process(DimensionMap map)
+				{
+					return filterImage(imageMap.get(map));
+				}
+			}, this);
+			if(outputImageMap == null)
 			{
 				return false;
 			}
-			ImagePlus im = new ImagePlus(imageMap.get(map));
-			ImageProcessor ip = im.getProcessor().convertToFloat();
-			
-			// //// Begin Actual Function
+		}
+		else
+		{
+			int count = 0, percentage = 0;
+			for (DimensionMap map : imageMap.keySet())
+			{
+				if(this.isCanceled())
+				{
+					return false;
+				}
+				String path = this.filterImage(imageMap.get(map));
+				
+				if(path != null)
+				{
+					outputImageMap.put(map, path);
+				}
+				
+				count = count + 1;
+				percentage = (int) (100 * ((double) (count) / ((double) imageMap.size())));
+				JEXStatics.statusBar.setProgressPercentage(percentage);
+			}
+		}
+		if(outputImageMap.size() == 0)
+		{
+			return false;
+		}
+		
+		this.output = ImageWriter.makeImageStackFromPaths("temp", outputImageMap);
+		
+		
+		// Return status
+		return true;
+	}
+	
+	/**
+	 * Filter one image and save it.
+	 * 
+	 * @return the path of the saved image
+	 */
+	private String filterImage(String imagePath)
+	{
+		ImagePlus im = new ImagePlus(imagePath);
+		ImageProcessor ip = im.getProcessor().convertToFloat();
+		
+		// //// Begin Actual Function
+		ImageProcessor toSave = null;
+		int type = FastRankFilter.getType(method);
+		if(!engine.equals("ImageJ RankFilters") && FastRankFilter.isSupported(type, (FloatProcessor) ip))
+		{
+			toSave = FastRankFilter.filter((FloatProcessor) ip, type, radius, engine.equals("Fast (square)"), bitDepth);
+		}
+		if(toSave == null)
+		{
 			RankFilters rF = new RankFilters();
 			rF.setup(method, im);
 			rF.makeKernel(radius);
 			rF.run(ip);
-			// //// End Actual Function
 			
-			ImageProcessor toSave = ip;
+			toSave = ip;
 			if(bitDepth == 8)
 			{
 				toSave = ip.convertToByte(false);
@@ -117,28 +181,10 @@ public class CTC_Filters extends JEXPlugin {
 			{
 				toSave = ip.convertToShort(false);
 			}
-			
-			String path = JEXWriter.saveImage(toSave);
-			
-			if(path != null)
-			{
-				outputImageMap.put(map, path);
-			}
-			
-			count = count + 1;
-			percentage = (int) (100 * ((double) (count) / ((double) imageMap.size())));
-			JEXStatics.statusBar.setProgressPercentage(percentage);
-		}
-		if(outputImageMap.size() == 0)
-		{
-			return false;
 		}
+		// //// End Actual Function
 		
-		this.output = ImageWriter.makeImageStackFromPaths("temp", outputImageMap);
-		
-		
-		// Return status
-		return true;
+		return JEXWriter.saveImage(toSave);
 	}
 	
 }
@@ -32,6 +32,7 @@ import org.scijava.plugin.Plugin;
 import jex.statics.JEXStatics;
 import logs.Logs;
 import miscellaneous.JEXCSVWriter;
+import plugins.maskHelpers.BitMask;
 import tables.DimTable;
 import tables.DimensionMap;
 import weka.core.converters.JEXTableWriter;
@@ -122,6 +123,9 @@ public class CTC_FindMaximaSegmentation extends JEXPlugin {
 	@ParameterMarker(uiOrder=12, name="Output Maxima Only?", description="Output the maxima only (checked TRUE) or also segmented image, point count, and XY List of points (unchecked FALSE)?", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=true)
 	boolean maximaOnly;
 	
+	@ParameterMarker(uiOrder=13, name="Bit-Packed Segmented Image?", description="Save the segmented images as 1-bit TIFF files (8x smaller, opened as 0/255 8-bit images).", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=false)
+	boolean bitPackedSegments;
+	
 	
 	/////////// Define Outputs ///////////
 	
@@ -395,7 +399,7 @@ public class CTC_FindMaximaSegmentation extends JEXPlugin {
 					JEXStatics.statusBar.setProgressPercentage(percentage);
 					counter = counter + 1;
 					
-					String segmentedImagePath = JEXWriter.saveImage(segmentedImage);
+					String segmentedImagePath = bitPackedSegments ? BitMask.saveImage(segmentedImage) : JEXWriter.saveImage(segmentedImage);
 					if(segmentedImagePath == null)
 					{
 						Logs.log("Failed to create/write segmented image", Logs.ERROR, this);
@@ -3,6 +3,7 @@ package plugins;
 import java.util.TreeMap;
 
 import jex.statics.JEXStatics;
+import plugins.parallelHelpers.PlaneExecutor;
 import ij.ImagePlus;
 import ij.process.Blitter;
 import ij.process.FloatBlitter;
@@ -49,6 +50,9 @@ public class CTC_ImageCalculator extends JEXPlugin {
 	@ParameterMarker(uiOrder=1, name="Output Bit-Depth", description="Bit-Depth of the output image", ui=MarkerConstants.UI_DROPDOWN, choices={"8","16","32"}, defaultChoice=2)
 	int bitDepth;
 
+	@ParameterMarker(uiOrder=2, name="Plane Threads", description="Number of images of the object processed at the same time within each entry (1 = one after the other).", ui=MarkerConstants.UI_TEXTFIELD, defaultText="1")
+	int planeThreads;
+
 	/////////// Define Outputs ///////////
 
 	@OutputMarker(uiOrder=1, name="Calculated Image", type=MarkerConstants.TYPE_IMAGE, flavor="", description="", enabled=true)
@@ -69,40 +73,26 @@ public class CTC_ImageCalculator extends JEXPlugin {
 			return false;
 
 		// Gather parameters
-		int methodInt = Blitter.DIVIDE; // initialize
-		if(method.equals("A+B"))
-			methodInt = Blitter.ADD;
-		else if(method.equals("AND"))
-			methodInt = Blitter.AND;
-		else if(method.equals("AVERAGE"))
-			methodInt = Blitter.AVERAGE;
-		else if(method.equals("COPY"))
-			methodInt = Blitter.COPY;
-		else if(method.equals("COPY_ZERO_TRANSPARENT"))
-			methodInt = Blitter.COPY_ZERO_TRANSPARENT;
-		else if(method.equals("|A-B|"))
-			methodInt = Blitter.DIFFERENCE;
-		else if(method.equals("A/B"))
-			methodInt = Blitter.DIVIDE;
-		else if(method.equals("MAX"))
-			methodInt = Blitter.MAX;
-		else if(method.equals("MIN"))
-			methodInt = Blitter.MIN;
-		else if(method.equals("A*B"))
-			methodInt = Blitter.MULTIPLY;
-		else if(method.equals("OR"))
-			methodInt = Blitter.OR;
-		else if(method.equals("A-B"))
-			methodInt = Blitter.SUBTRACT;
-		else if(method.equals("XOR"))
-			methodInt = Blitter.XOR;
+		int methodInt = getBlitterMethod(method);
+		if(methodInt < 0)
+		{
+			methodInt = Blitter.DIVIDE; // initialize
+		}
 
 		// Run the function
 		TreeMap<DimensionMap,String> imageAMap = ImageReader.readObjectToImagePathTable(imageAData);
 		TreeMap<DimensionMap,String> imageBMap = ImageReader.readObjectToImagePathTable(imageBData);
 		TreeMap<DimensionMap,String> outputImageMap = new TreeMap<DimensionMap,String>();
 		int count = 0, percentage = 0;
-		if(imageAMap.size() == 1)
+		if(planeThreads > 1)
+		{
+			outputImageMap = this.calculateInParallel(imageAMap, imageBMap, methodInt);
+			if(outputImageMap == null)
+			{
+				return false;
+			}
+		}
+		else if(imageAMap.size() == 1)
 		{
 			if(this.isCanceled())
 			{
@@ -236,4 +226,97 @@ public class CTC_ImageCalculator extends JEXPlugin {
 		// Return status
 		return true;
 	}
+
+	/**
+	 * @return the Blitter mode of a Math Operation choice or -1 if unknown
+	 */
+	public static int getBlitterMethod(String method)
+	{
+		int methodInt = -1;
+		if(method.equals("A+B"))
+			methodInt = Blitter.ADD;
+		else if(method.equals("AND"))
+			methodInt = Blitter.AND;
+		else if(method.equals("AVERAGE"))
+			methodInt = Blitter.AVERAGE;
+		else if(method.equals("COPY"))
+			methodInt = Blitter.COPY;
+		else if(method.equals("COPY_ZERO_TRANSPARENT"))
+			methodInt = Blitter.COPY_ZERO_TRANSPARENT;
+		else if(method.equals("|A-B|"))
+			methodInt = Blitter.DIFFERENCE;
+		else if(method.equals("A/B"))
+			methodInt = Blitter.DIVIDE;
+		else if(method.equals("MAX"))
+			methodInt = Blitter.MAX;
+		else if(method.equals("MIN"))
+			methodInt = Blitter.MIN;
+		else if(method.equals("A*B"))
+			methodInt = Blitter.MULTIPLY;
+		else if(method.equals("OR"))
+			methodInt = Blitter.OR;
+		else if(method.equals("A-B"))
+			methodInt = Blitter.SUBTRACT;
+		else if(method.equals("XOR"))
+			methodInt = Blitter.XOR;
+		return methodInt;
+	}
+
+	/**
+	 * Same as the sequential loops of run but processing planeThreads planes
+	 * at a time.
+	 * 
+	 * @return the output paths or null if canceled or failed
+	 */
+	private TreeMap<DimensionMap,String> calculateInParallel(final TreeMap<DimensionMap,String> imageAMap, final TreeMap<DimensionMap,String> imageBMap, final int methodInt)
+	{
+		// A single image is combined with every image of the other object
+		final FloatProcessor savedImpA = imageAMap.size() == 1 ? (FloatProcessor) new ImagePlus(imageAMap.firstEntry().getValue()).getProcessor().convertToFloat() : null;
+		final FloatProcessor savedImpB = savedImpA == null && imageBMap.size() == 1 ? (FloatProcessor) new ImagePlus(imageBMap.firstEntry().getValue()).getProcessor().convertToFloat() : null;
+		TreeMap<DimensionMap,String> maps = savedImpA != null ? imageBMap : imageAMap;
+
+		return new PlaneExecutor(planeThreads).run(maps.keySet(), new PlaneExecutor.PlaneFunction() {
+
+			@Override
+			public String process(DimensionMap map)
+			{
+				FloatProcessor ipA, ipB;
+				if(savedImpA != null)
+				{
+					ipA = new FloatProcessor(savedImpA.getWidth(), savedImpA.getHeight(), (float[]) savedImpA.getPixelsCopy(), null);
+				}
+				else
+				{
+					ipA = (FloatProcessor) new ImagePlus(imageAMap.get(map)).getProcessor().convertToFloat();
+				}
+				if(savedImpB != null)
+				{
+					// only read by the blitter
+					ipB = savedImpB;
+				}
+				else
+				{
+					String pathB = imageBMap.get(map);
+					if(pathB == null)
+					{
+						return null;
+					}
+					ipB = (FloatProcessor) new ImagePlus(pathB).getProcessor().convertToFloat();
+				}
+
+				FloatBlitter blit = new FloatBlitter(ipA);
+				blit.copyBits(ipB, 0, 0, methodInt);
+				ImageProcessor toSave = ipA;
+				if(bitDepth == 8)
+				{
+					toSave = ipA.convertToByte(false);
+				}
+				else if(bitDepth == 16)
+				{
+					toSave = ipA.convertToShort(false);
+				}
+				return JEXWriter.saveImage(toSave);
+			}
+		}, this);
+	}
 }
@@ -1,18 +1,12 @@
 package plugins;
 
-import ij.process.Blitter;
-import ij.process.ByteProcessor;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
-import io.scif.FormatException;
 import io.scif.ImageMetadata;
 import io.scif.Plane;
 import io.scif.Reader;
 import io.scif.SCIFIO;
 import io.scif.config.SCIFIOConfig;
 
-import java.awt.Rectangle;
 import java.io.File;
 import java.io.IOException;
 import java.util.Iterator;
@@ -20,10 +14,10 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import jex.statics.JEXDialog;
 import jex.statics.JEXStatics;
-import loci.common.DataTools;
 import logs.Logs;
 import miscellaneous.Canceler;
 import miscellaneous.FileUtility;
@@ -33,6 +27,11 @@ import net.imagej.axis.CalibratedAxis;
 
 import org.scijava.plugin.Plugin;
 
+import plugins.importHelpers.ImportManifest;
+import plugins.importHelpers.MontageSplitter;
+import plugins.importHelpers.PlaneBufferPool;
+import plugins.importHelpers.PlaneImportPipeline;
+import plugins.tiffHelpers.DirectTiffWriter;
 import tables.Dim;
 import tables.DimTable;
 import tables.DimensionMap;
@@ -84,6 +83,15 @@ public class CTC_ImportImages_SCIFIO extends JEXPlugin {
 	@ParameterMarker(uiOrder=5, name="Gather channel names?", description="Transfer the name of each channel (e.g. DAPI, FITC, etc) if available in the metadata of the image. Otherwise, channels are named by index in the order they were provided by the image.", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=false)
 	boolean transferNames;
 	
+	@ParameterMarker(uiOrder=6, name="Import Threads", description="Number of threads used to decode the planes of each file (and the same number to write them). Use 1 to import the planes sequentially.", ui=MarkerConstants.UI_TEXTFIELD, defaultText="1")
+	int importThreads;
+	
+	@ParameterMarker(uiOrder=7, name="Import Manifest File", description="Optional file used to remember what was imported. Files whose path, size, modification time and content are unchanged since the last import with the same settings are not decoded again (their planes are kept in a folder next to the manifest). Leave blank to always import every file.", ui=MarkerConstants.UI_FILECHOOSER, defaultText="")
+	String manifestPath;
+	
+	@ParameterMarker(uiOrder=8, name="Plane Writer", description="How the imported planes are saved. 'Direct TIFF' writes uncompressed TIFFs straight from the pixel array through a file channel (8, 16 and 32-bit planes), which is much faster for large imports. The 'sync to disk' option also forces each file to the disk before moving on.", ui=MarkerConstants.UI_DROPDOWN, choices={ "ImageJ", "Direct TIFF", "Direct TIFF (sync to disk)" }, defaultChoice=0)
+	String planeWriter;
+	
 	
 	
 	/////////// Define Outputs ///////////
@@ -129,6 +137,21 @@ public class CTC_ImportImages_SCIFIO extends JEXPlugin {
 		
 		TreeMap<DimensionMap,String> multiMap = new TreeMap<DimensionMap,String>();
 		boolean fileNotFound = false;
+		
+		// One SCIFIO context is shared by all the readers of this import
+		final SCIFIO scifio = new SCIFIO(IJ2PluginUtility.ij().getContext());
+		
+		// channel names resolved for each set of metadata names so they are only resolved once
+		TreeMap<String,Dim> channelNames = new TreeMap<String,Dim>();
+		
+		ImportManifest manifest = null;
+		String manifestSettings = null;
+		if(manifestPath != null && !manifestPath.trim().equals(""))
+		{
+			manifest = ImportManifest.load(new File(manifestPath.trim()));
+			// planes are only reused if imported with the same settings
+			manifestSettings = "Plane Writer=" + planeWriter + ";Montage Rows=" + imRows + ";Montage Cols=" + imCols + ";Separator=" + separator + ";Gather channel names=" + transferNames;
+		}
 		for (File f: pendingImageFiles)
 		{
 			if(!f.exists())
@@ -144,8 +167,21 @@ public class CTC_ImportImages_SCIFIO extends JEXPlugin {
 			// usually x and y coordinate map
 			DimensionMap baseMap = this.getMapFromPath(f.getAbsolutePath(), separator);
 			
+			// skip decoding files that were imported before and haven't changed since
+			if(manifest != null)
+			{
+				ImportManifest.Record previous = manifest.getUnchanged(f, manifestSettings);
+				TreeMap<DimensionMap,String> planes = previous == null ? null : manifest.copyPlanes(previous);
+				if(planes != null)
+				{
+					Logs.log("Reusing the planes previously imported from " + f.getAbsolutePath(), this);
+					multiMap.putAll(planes);
+					table = previous.table;
+					continue;
+				}
+			}
+			
 			// get reader for image file
-			final SCIFIO scifio = new SCIFIO(IJ2PluginUtility.ij().getContext());
 			Reader reader = null;
 			try
 			{
@@ -158,91 +194,53 @@ public class CTC_ImportImages_SCIFIO extends JEXPlugin {
 				return false;
 			}
 			// 	get table from reader		
-			table = getDimTableFromReader(reader, autoNameGathering);
+			table = getDimTableFromReader(reader, autoNameGathering, channelNames);
 			if(table == null)
 			{
 				JEXDialog.messageDialog("Function canceled manually OR due to issues with determining dimensions of the image.");
 				return false;
 			}
 			
-			Iterator<DimensionMap> itr = table.getMapIterator().iterator();
-			double total = reader.getImageCount() * reader.getPlaneCount(0);
-			double count = 0;
+			TreeMap<DimensionMap,String> fileMap = new TreeMap<DimensionMap,String>();
 			JEXStatics.statusBar.setProgressPercentage(0);
-			for (int i = 0; i < reader.getImageCount(); i++) {
-				for (int j = 0; j < reader.getPlaneCount(i); j++) {
-					Plane plane;
-					try
-					{
-						plane = reader.openPlane(i, j);
-					}
-					catch (Exception e)
-					{
-						Logs.log("Couldn't read image " + i + " plane " + j + " in " + f.getAbsolutePath() + ". Skipping to next plane.", Logs.ERROR, this);
-						e.printStackTrace();
-						continue;
-					}
-					ImageMetadata d = plane.getImageMetadata();
-					long[] dims = d.getAxesLengthsPlanar();
-					ImageProcessor ip = null;
-					if(d.getBitsPerPixel() <= 8)
-					{
-						byte[] converted = (byte[]) DataTools.makeDataArray(plane.getBytes(), 1, false, d.isLittleEndian());
-						ip = new ByteProcessor((int)dims[0], (int)dims[1], converted, null);
-					}
-					else if(d.getBitsPerPixel() >= 9 && d.getBitsPerPixel() <= 16)
-					{
-						short[] converted = (short[]) DataTools.makeDataArray(plane.getBytes(), 2, false, d.isLittleEndian());
-						ip = new ShortProcessor((int)dims[0], (int)dims[1], converted, null);
-					}
-					else if(d.getBitsPerPixel() >= 17 && d.getBitsPerPixel() <= 32)
-					{
-						float[] converted = (float[]) DataTools.makeDataArray(plane.getBytes(), 4, true, d.isLittleEndian());
-						ip = new FloatProcessor((int)dims[0], (int)dims[1], converted, null);
-					}
-					else
-					{
-						Logs.log("Couldn't handle writing of image with this particular bits-per-pixel: " + d.getBitsPerPixel(), Logs.ERROR, this);
-						return false;
-					}
-					
-					
-					if(this.isCanceled())
-					{
-						return false;
-					}
-					
-					// For each image split it if necessary
-					if(imRows * imCols > 1)
-					{
-						TreeMap<DimensionMap,ImageProcessor> splitImages = splitRowsAndCols(ip, imRows, imCols, this);
-						// The above might return null because of being canceled. Catch cancel condition and move on.
-						if(this.isCanceled())
-						{
-							return false;
-						}
-						DimensionMap map = itr.next().copy();
-						for(Entry<DimensionMap,ImageProcessor> e : splitImages.entrySet())
-						{
-							String filename = JEXWriter.saveImage(e.getValue());
-							map.putAll(e.getKey());
-							multiMap.put(map.copy(),filename);
-							Logs.log(map.toString() + " :: " + filename, this);
-						}
-					}
-					else
-					{
-						String filename = JEXWriter.saveImage(ip);
-						DimensionMap map = itr.next().copy();
-						map.putAll(baseMap.copy());
-						multiMap.put(map,filename);
-						Logs.log(map.toString() + " = " + filename, this);
-					}					
-					
-					JEXStatics.statusBar.setProgressPercentage((int) (100.0 * count / total));
-					count = count + 1;
+			if(importThreads > 1)
+			{
+				if(!this.importPlanesInParallel(scifio, f, reader, table, baseMap, fileMap))
+				{
+					return false;
 				}
 			}
+			else if(!this.importPlanes(f, reader, table, baseMap, fileMap))
+			{
+				return false;
+			}
+			multiMap.putAll(fileMap);
+			
+			if(manifest != null)
+			{
+				try
+				{
+					manifest.put(f, manifestSettings, table, fileMap);
+				}
+				catch (IOException e)
+				{
+					Logs.log("Couldn't add " + f.getAbsolutePath() + " to the import manifest.", Logs.ERROR, this);
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		if(manifest != null)
+		{
+			try
+			{
+				manifest.save();
+			}
+			catch (IOException e)
+			{
+				Logs.log("Couldn't save the import manifest " + manifestPath, Logs.ERROR, this);
+				e.printStackTrace();
+			}
 		}
 		
 		if(fileNotFound)
@@ -269,6 +267,174 @@ public class CTC_ImportImages_SCIFIO extends JEXPlugin {
 		return true;
 	}
 	
+	/**
+	 * Split (if necessary) and save a decoded plane, adding the resulting
+	 * path(s) to multiMap. Safe to call from multiple threads.
+	 * 
+	 * @return false if canceled
+	 */
+	private boolean savePlane(ImageProcessor ip, DimensionMap planeMap, DimensionMap baseMap, final TreeMap<DimensionMap,String> multiMap)
+	{
+		// For each image split it if necessary
+		if(imRows * imCols > 1)
+		{
+			final DimensionMap map = planeMap.copy();
+			try
+			{
+				// Tiles are copied straight out of the plane and, when importing with multiple threads, saved in parallel
+				return MontageSplitter.split(ip, imRows, imCols, new MontageSplitter.TileHandler() {
+					
+					@Override
+					public boolean handleTile(int row, int col, ImageProcessor tile)
+					{
+						String filename = saveImage(tile);
+						if(filename == null)
+						{
+							return false;
+						}
+						DimensionMap tileMap = map.copy();
+						tileMap.put("ImRow", "" + row);
+						tileMap.put("ImCol", "" + col);
+						synchronized(multiMap)
+						{
+							multiMap.put(tileMap,filename);
+						}
+						Logs.log(tileMap.toString() + " :: " + filename, CTC_ImportImages_SCIFIO.this);
+						return true;
+					}
+				}, importThreads > 1, this);
+			}
+			catch (Exception e)
+			{
+				Logs.log("Couldn't split montage for " + map.toString(), Logs.ERROR, this);
+				e.printStackTrace();
+				return false;
+			}
+		}
+		else
+		{
+			String filename = this.saveImage(ip);
+			if(filename == null)
+			{
+				return false;
+			}
+			DimensionMap map = planeMap.copy();
+			map.putAll(baseMap.copy());
+			synchronized(multiMap)
+			{
+				multiMap.put(map,filename);
+			}
+			Logs.log(map.toString() + " = " + filename, this);
+		}
+		return true;
+	}
+	
+	/**
+	 * Save the plane with the chosen plane writer.
+	 * 
+	 * @return the path of the saved plane or null if it couldn't be saved
+	 */
+	private String saveImage(ImageProcessor ip)
+	{
+		if(planeWriter == null || planeWriter.equals("ImageJ") || !DirectTiffWriter.isSupported(ip))
+		{
+			return JEXWriter.saveImage(ip);
+		}
+		try
+		{
+			return DirectTiffWriter.saveImage(ip, planeWriter.equals("Direct TIFF (sync to disk)"));
+		}
+		catch (IOException e)
+		{
+			Logs.log("Couldn't write plane to a TIFF file.", Logs.ERROR, this);
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Decode and save the planes of a file one at a time.
+	 */
+	private boolean importPlanes(File f, Reader reader, DimTable table, DimensionMap baseMap, TreeMap<DimensionMap,String> fileMap)
+	{
+		PlaneBufferPool pool = new PlaneBufferPool(1);
+		Iterator<DimensionMap> itr = table.getMapIterator().iterator();
+		double total = reader.getImageCount() * reader.getPlaneCount(0);
+		double count = 0;
+		for (int i = 0; i < reader.getImageCount(); i++) {
+			for (int j = 0; j < reader.getPlaneCount(i); j++) {
+				Plane plane;
+				try
+				{
+					plane = reader.openPlane(i, j);
+				}
+				catch (Exception e)
+				{
+					Logs.log("Couldn't read image " + i + " plane " + j + " in " + f.getAbsolutePath() + ". Skipping to next plane.", Logs.ERROR, this);
+					e.printStackTrace();
+					continue;
+				}
+				ImageProcessor ip = PlaneImportPipeline.getProcessor(plane, pool);
+				if(ip == null)
+				{
+					Logs.log("Couldn't handle writing of image with this particular bits-per-pixel: " + plane.getImageMetadata().getBitsPerPixel(), Logs.ERROR, this);
+					return false;
+				}
+				
+				
+				if(this.isCanceled())
+				{
+					return false;
+				}
+				
+				if(!this.savePlane(ip, itr.next(), baseMap, fileMap))
+				{
+					return false;
+				}
+				pool.release(ip);
+				
+				JEXStatics.statusBar.setProgressPercentage((int) (100.0 * count / total));
+				count = count + 1;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Decode and save the planes of a file using a pool of readers and
+	 * writers. Each plane gets the DimensionMap that the sequential import
+	 * would have given it (i.e., the n-th map of the table for the n-th plane).
+	 */
+	private boolean importPlanesInParallel(SCIFIO scifio, File f, Reader reader, DimTable table, final DimensionMap baseMap, final TreeMap<DimensionMap,String> fileMap)
+	{
+		final List<DimensionMap> planeMaps = new Vector<DimensionMap>();
+		for(DimensionMap map : table.getMapIterator())
+		{
+			planeMaps.add(map);
+		}
+		final double total = planeMaps.size();
+		final AtomicInteger count = new AtomicInteger(0);
+		PlaneImportPipeline pipeline = new PlaneImportPipeline(scifio, importThreads);
+		return pipeline.run(f.getAbsolutePath(), reader, new PlaneImportPipeline.PlaneHandler() {
+			
+			@Override
+			public boolean handlePlane(int planeIndex, ImageProcessor ip)
+			{
+				if(planeIndex >= planeMaps.size())
+				{
+					Logs.log("More planes than expected from the dimensions of the image. Skipping plane " + planeIndex, Logs.ERROR, CTC_ImportImages_SCIFIO.this);
+					return true;
+				}
+				if(!savePlane(ip, planeMaps.get(planeIndex), baseMap, fileMap))
+				{
+					return false;
+				}
+				JEXStatics.statusBar.setProgressPercentage((int) (100.0 * count.incrementAndGet() / total));
+				return true;
+			}
+		}, this);
+	}
+	
 	/**
 	 * Create DimensionMap of a given image 
 	 * The image name should be in certain format, ex. Image_x001_y002_z004.tif
@@ -311,23 +477,26 @@ public class CTC_ImportImages_SCIFIO extends JEXPlugin {
 		
 	}
 	
-	private static DimTable getDimTableFromReader(Reader r, boolean transferNames)
+	/**
+	 * Build the DimTable of the file from its metadata (no plane is decoded).
+	 * The channel names are resolved (including asking what to do when they
+	 * don't match the channels) once for each distinct set of "Name #" values
+	 * and size of the channel dimension, and reused from channelNames for the
+	 * files with the same values (a null value means the indices were kept).
+	 */
+	private static DimTable getDimTableFromReader(Reader r, boolean transferNames, TreeMap<String,Dim> channelNames)
 	{
 		DimTable ret = new DimTable();
-		try
+		ImageMetadata meta = r.getMetadata().get(0);
+		if(meta == null)
 		{
-			ImageMetadata meta = r.openPlane(0, 0).getImageMetadata();
-			long[] lengths = meta.getAxesLengthsNonPlanar();
-			List<CalibratedAxis> axes = meta.getAxesNonPlanar();
-			for(int i = lengths.length-1; i > -1; i--)
-			{
-				ret.add(new Dim(axes.get(i).type().getLabel(), (int) lengths[i]));
-			}
+			return null; // Cancels function
 		}
-		catch (FormatException | IOException e)
+		long[] lengths = meta.getAxesLengthsNonPlanar();
+		List<CalibratedAxis> axes = meta.getAxesNonPlanar();
+		for(int i = lengths.length-1; i > -1; i--)
 		{
-			e.printStackTrace();
-			return null; // Cancels function
+			ret.add(new Dim(axes.get(i).type().getLabel(), (int) lengths[i]));
 		}
 		
 		if(transferNames)
@@ -340,6 +509,28 @@ public class CTC_ImportImages_SCIFIO extends JEXPlugin {
 					colors.put(e.getKey().toString().trim(), e.getValue().toString().trim());
 				}
 			}
+			
+			// files with the same names and number of channels resolve to the same channel names
+			int channelIndex = ret.indexOfDimWithName(Axes.CHANNEL.getLabel());
+			String seriesKey = null;
+			if(channelIndex > -1)
+			{
+				StringBuilder key = new StringBuilder("" + ret.get(channelIndex).size());
+				for(Entry<String,String> e : colors.entrySet())
+				{
+					key.append('\t').append(e.getKey()).append('\t').append(e.getValue());
+				}
+				seriesKey = key.toString();
+				if(channelNames.containsKey(seriesKey))
+				{
+					Dim cached = channelNames.get(seriesKey);
+					if(cached != null)
+					{
+						ret.set(channelIndex, cached.copy());
+					}
+					return ret;
+				}
+			}
 			try
 			{
 				String[] colorNames = ((String[]) colors.values().toArray(new String[]{}));
@@ -385,19 +576,26 @@ public class CTC_ImportImages_SCIFIO extends JEXPlugin {
 					{
 						newColorDim = new Dim("Color", newColorDim.valuesStartingAt(newColorDim.size() - size)); // Best guess appears to be last named color settings
 						ret.set(i, newColorDim);
+						channelNames.put(seriesKey, newColorDim.copy());
 					}
 					else if(choice == -1)
 					{
 						return null; // Cancels function
 					}
+					else
+					{
+						channelNames.put(seriesKey, null);
+					}
 				}
 				else if(newColorDim.size() < size)
 				{
 					JEXDialog.messageDialog("Couldn't find enough color setting names for each color in the image set.\n\nLeaving indices instead of replacing indices with names.");
+					channelNames.put(seriesKey, null);
 				}
 				else
 				{
 					ret.set(i, newColorDim);
+					channelNames.put(seriesKey, newColorDim.copy());
 				}
 			}
 			catch (IndexOutOfBoundsException e)
@@ -426,13 +624,7 @@ public class CTC_ImportImages_SCIFIO extends JEXPlugin {
 				{
 					return null;
 				}
-				int x = c * w;
-				int y = r * h;
-				Rectangle rect = new Rectangle(x, y, w, h);
-				imp.setRoi(rect);
-				ImageProcessor toCopy = imp.crop();
-				ImageProcessor toSave = imp.createProcessor(w, h);
-				toSave.copyBits(toCopy, 0, 0, Blitter.COPY);
+				ImageProcessor toSave = MontageSplitter.extractTile(imp, c * w, r * h, w, h);
 				ret.put(new DimensionMap("ImRow=" + r + ",ImCol=" + c), toSave);
 			}
 		}
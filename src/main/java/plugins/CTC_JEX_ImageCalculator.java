@@ -196,33 +196,11 @@ public class CTC_JEX_ImageCalculator extends JEXCrunchable {
 		// Gather parameters
 		int bitDepth = Integer.parseInt(parameters.getValueOfParameter("Output Bit-Depth"));
 		String method = parameters.getValueOfParameter("Math Operation");
-		int methodInt = Blitter.DIVIDE;
-		if(method.equals("A+B"))
-			methodInt = Blitter.ADD;
-		else if(method.equals("AND"))
-			methodInt = Blitter.AND;
-		else if(method.equals("AVERAGE"))
-			methodInt = Blitter.AVERAGE;
-		else if(method.equals("COPY"))
-			methodInt = Blitter.COPY;
-		else if(method.equals("COPY_ZERO_TRANSPARENT"))
-			methodInt = Blitter.COPY_ZERO_TRANSPARENT;
-		else if(method.equals("|A-B|"))
-			methodInt = Blitter.DIFFERENCE;
-		else if(method.equals("A/B"))
-			methodInt = Blitter.DIVIDE;
-		else if(method.equals("MAX"))
-			methodInt = Blitter.MAX;
-		else if(method.equals("MIN"))
-			methodInt = Blitter.MIN;
-		else if(method.equals("A*B"))
-			methodInt = Blitter.MULTIPLY;
-		else if(method.equals("OR"))
-			methodInt = Blitter.OR;
-		else if(method.equals("A-B"))
-			methodInt = Blitter.SUBTRACT;
-		else if(method.equals("XOR"))
-			methodInt = Blitter.XOR;
+		int methodInt = CTC_ImageCalculator.getBlitterMethod(method);
+		if(methodInt < 0)
+		{
+			methodInt = Blitter.DIVIDE; // initialize
+		}
 		
 		// Run the function
 		TreeMap<DimensionMap,String> imageAMap = ImageReader.readObjectToImagePathTable(imageAData);
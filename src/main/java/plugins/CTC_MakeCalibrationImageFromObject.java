@@ -18,13 +18,21 @@ import ij.process.FloatBlitter;
 import ij.process.FloatProcessor;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.Callable;
 
 import org.scijava.plugin.Plugin;
 
 import jex.statics.JEXStatics;
+import logs.Logs;
+import plugins.calibrationHelpers.CalibrationCache;
+import plugins.calibrationHelpers.CalibrationStore;
+import plugins.projectionHelpers.ParallelProjection;
 
 /**
  * Make Calibration Image (Object)
@@ -43,8 +51,6 @@ import jex.statics.JEXStatics;
 		)
 public class CTC_MakeCalibrationImageFromObject extends JEXPlugin {
 
-	public static ImagePlus calibrationImage = null;
-
 	public CTC_MakeCalibrationImageFromObject()
 	{}
 
@@ -55,7 +61,7 @@ public class CTC_MakeCalibrationImageFromObject extends JEXPlugin {
 
 	/////////// Define Parameters ///////////
 
-	@ParameterMarker(uiOrder=0, name="Stack Projection Method", description="Calculation method for projecting the stack to a single image (pseudo median = The median of subgroups will be averaged)", ui=MarkerConstants.UI_DROPDOWN, choices={ "Mean", "Pseudo Median" }, defaultChoice=1)
+	@ParameterMarker(uiOrder=0, name="Stack Projection Method", description="Calculation method for projecting the stack to a single image (pseudo median = The median of subgroups will be averaged)", ui=MarkerConstants.UI_DROPDOWN, choices={ "Mean", "Pseudo Median", "Median (exact)" }, defaultChoice=1)
 	String method;
 
 	@ParameterMarker(uiOrder=1, name="Pseudo Median Subgroup Size", description="The number of images in each subgroup. Used for pseudo median option. Each median operation only produces integer value increments. Mean produces decimal increments", ui=MarkerConstants.UI_TEXTFIELD, defaultText="10")
@@ -67,12 +73,14 @@ public class CTC_MakeCalibrationImageFromObject extends JEXPlugin {
 	@ParameterMarker(uiOrder=3, name="Smoothing Filter Radius", description="Radius of the smoothing filter", ui=MarkerConstants.UI_TEXTFIELD, defaultText="2")
 	double radius;
 
+	@ParameterMarker(uiOrder=4, name="Multi-core?", description="Read and reduce the images on all cores (Mean and Pseudo Median). Sums are accumulated in double precision so results can differ from the single-core projection in the last digits. Median (exact) always runs on all cores, spilling bands of rows to temp files so any number of images can be used.", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=false)
+	boolean multiCore;
+
 	/////////// Define Outputs ///////////
 
 	@OutputMarker(uiOrder=0, name="Calibration Image", type=MarkerConstants.TYPE_IMAGE, flavor="", description="", enabled=true)
 	JEXData output;
 
-
 	@Override
 	public int getMaxThreads()
 	{
@@ -98,40 +106,85 @@ public class CTC_MakeCalibrationImageFromObject extends JEXPlugin {
 			return true;
 		}
 
-		// validate parameters
-		if(calibrationImage == null)
+		// Compute the calibration once for all entries using the same images
+		// and parameters, each entry saving its own copy
+		final String[] filePaths = ImageReader.readObjectToImagePathStack(imageData);
+		String key = CalibrationCache.getKey(filePaths, method, groupSize, multiCore, smooth, radius);
+		FloatProcessor imp = null;
+		try
 		{
-			String[] filePaths = ImageReader.readObjectToImagePathStack(imageData);
-
-			FloatProcessor imp = null;
-			if(method.equals("Mean"))
-			{
-				imp = getMeanProjection(filePaths);
-			}
-			else
-			{
-				imp = getPseudoMedianProjection(filePaths, groupSize);
-			}
+			imp = CalibrationStore.get(key, new Callable<FloatProcessor>() {
+
+				@Override
+				public FloatProcessor call() throws Exception
+				{
+					return makeCalibrationImage(filePaths);
+				}
+			});
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		if(imp == null)
+		{
+			Logs.log("Couldn't compute the " + method + " projection of the images.", Logs.ERROR, this);
+			return false;
+		}
+		String path = JEXWriter.saveImage(imp);
+		if(path == null)
+		{
+			Logs.log("Couldn't save the calibration image.", Logs.ERROR, this);
+			return false;
+		}
+		CalibrationStore.addPath(path, key);
+		this.output = ImageWriter.makeImageObject(output.name, path);
 
-			if(!smooth.equals("none"))
-			{
-				ImagePlus temp = new ImagePlus("temp", imp);
-				RankFilters rF = new RankFilters();
-				rF.setup(method, temp);
-				rF.makeKernel(radius);
-				rF.run(imp);
-				temp.flush();
-				temp = null;
-			}
+		// Return status
+		return true;
+	}
 
-			// //// End Actual Function
-			calibrationImage = new ImagePlus("temp", imp);
+	private FloatProcessor makeCalibrationImage(String[] filePaths) throws IOException
+	{
+		FloatProcessor imp = null;
+		if(method.equals("Median (exact)"))
+		{
+			imp = ParallelProjection.getMedianProjection(filePaths);
+		}
+		else if(multiCore && method.equals("Mean"))
+		{
+			imp = ParallelProjection.getMeanProjection(filePaths);
+		}
+		else if(multiCore)
+		{
+			imp = ParallelProjection.getPseudoMedianProjection(filePaths, groupSize);
+		}
+		else if(method.equals("Mean"))
+		{
+			imp = getMeanProjection(filePaths);
+		}
+		else
+		{
+			imp = getPseudoMedianProjection(filePaths, groupSize);
+		}
+		if(imp == null)
+		{
+			return null;
 		}
 
-		this.output = ImageWriter.makeImageObject(output.name, "Placeholder");
+		if(!smooth.equals("none"))
+		{
+			ImagePlus temp = new ImagePlus("temp", imp);
+			RankFilters rF = new RankFilters();
+			rF.setup(method, temp);
+			rF.makeKernel(radius);
+			rF.run(imp);
+			temp.flush();
+			temp = null;
+		}
 
-		// Return status
-		return true;
+		// //// End Actual Function
+		return imp;
 	}
 
 	public FloatProcessor getPseudoMedianProjection(String[] fileList, int groupSize)
@@ -197,20 +250,60 @@ public class CTC_MakeCalibrationImageFromObject extends JEXPlugin {
 
 	public void finalizeTicket(Ticket ticket)
 	{
-		if(calibrationImage != null)
+		// Calibrations saved by the entries of this ticket (the first one, in
+		// entry order, is the calibration of the ticket)
+		TreeMap<JEXEntry,Set<JEXData>> outputs = ticket.getOutputList();
+		List<String> paths = new Vector<String>();
+		for (Set<JEXData> data : outputs.values())
+		{
+			JEXData calibration = this.getCalibration(data);
+			if(calibration != null)
+			{
+				paths.add(ImageReader.readObjectToImagePath(calibration));
+			}
+		}
+		if(paths.size() == 0)
+		{
+			return;
+		}
+
+		// Give the entries without source images their own copy of it
+		ImagePlus imp = null;
+		for (Entry<JEXEntry,Set<JEXData>> e : outputs.entrySet())
+		{
+			Set<JEXData> data = e.getValue();
+			if(this.getCalibration(data) == null)
+			{
+				if(imp == null)
+				{
+					imp = new ImagePlus(paths.get(0));
+				}
+				String finalPath = JEXWriter.saveImage(imp.getProcessor());
+				data.add(ImageWriter.makeImageObject(output.name, finalPath));
+			}
+		}
+		if(imp != null)
+		{
+			imp.flush();
+		}
+
+		// Drop the calibrations of this ticket from the store
+		for (String path : paths)
+		{
+			CalibrationStore.removePath(path);
+		}
+	}
+
+	private JEXData getCalibration(Set<JEXData> data)
+	{
+		for (JEXData d : data)
 		{
-			// Copy the calibration image to all the locations
-			TreeMap<JEXEntry,Set<JEXData>> outputs = ticket.getOutputList();
-			for (Entry<JEXEntry,Set<JEXData>> e : outputs.entrySet())
+			if(d != null && d.name.equals(output.name) && d.getTypeName().getType().equals(JEXData.IMAGE))
 			{
-				String finalPath = JEXWriter.saveImage(calibrationImage);
-				JEXData temp = ImageWriter.makeImageObject(output.name, finalPath);
-				Set<JEXData> data = e.getValue();
-				data.add(temp);
+				return d;
 			}
-			calibrationImage.flush();
-			calibrationImage = null;
 		}
+		return null;
 	}
 
 
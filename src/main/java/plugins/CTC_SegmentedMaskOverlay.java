@@ -19,6 +19,7 @@ import java.util.TreeMap;
 
 import org.scijava.plugin.Plugin;
 
+import plugins.maskHelpers.BitMask;
 import tables.DimensionMap;
 
 /**
@@ -187,12 +188,24 @@ public class CTC_SegmentedMaskOverlay extends JEXPlugin {
 			DimensionMap newMap = map.copy();
 			newMap.put(dimName, "MASK");
 			
-			ByteProcessor seg = (ByteProcessor) (new ImagePlus(segs.get(map))).getProcessor();
-			ByteProcessor mask = (ByteProcessor) (new ImagePlus(masks.get(map))).getProcessor();
-			
-			seg.invert();
-			mask.multiply(0.50);
-			seg.copyBits(mask, 0, 0, Blitter.ADD);
+			ByteProcessor seg = null;
+			BitMask segBits = BitMask.read(segs.get(map));
+			BitMask maskBits = BitMask.read(masks.get(map));
+			if(segBits != null && segBits.isSameSize(maskBits))
+			{
+				// Bit-packed masks: white off the segments, half the mask on them
+				seg = segBits.toByteProcessor(255, 0);
+				segBits.and(maskBits).paint(seg, getHalfMaskValue());
+			}
+			else
+			{
+				seg = segBits != null ? segBits.toByteProcessor() : (ByteProcessor) (new ImagePlus(segs.get(map))).getProcessor();
+				ByteProcessor mask = maskBits != null ? maskBits.toByteProcessor() : (ByteProcessor) (new ImagePlus(masks.get(map))).getProcessor();
+				
+				seg.invert();
+				mask.multiply(0.50);
+				seg.copyBits(mask, 0, 0, Blitter.ADD);
+			}
 			String path = JEXWriter.saveImage(seg);
 			
 			overlayers.put(newMap, path);
@@ -207,4 +220,15 @@ public class CTC_SegmentedMaskOverlay extends JEXPlugin {
 		return true;
 	}
 	
-}
\ No newline at end of file
+	/**
+	 * @return the value of a 255 mask pixel multiplied by 0.5 as above
+	 */
+	private static int getHalfMaskValue()
+	{
+		ByteProcessor half = new ByteProcessor(1, 1);
+		half.set(0, 0, 255);
+		half.multiply(0.50);
+		return half.get(0, 0);
+	}
+	
+}
@@ -26,6 +26,7 @@ import miscellaneous.StatisticsUtility;
 
 import org.scijava.plugin.Plugin;
 
+import plugins.maskHelpers.BitMask;
 import tables.Dim;
 import tables.DimTable;
 import tables.DimensionMap;
@@ -345,12 +346,27 @@ public class CTC_SingleCellColocalization extends JEXPlugin {
 		ROIPlus maxima = maximaMap.get(map);
 		
 		// Make the mask image impMask
-		ByteProcessor impMask = (ByteProcessor) (new ImagePlus(maskMap.get(map)).getProcessor().convertToByte(false));
-		if(segProvided)
+		ByteProcessor impMask = null;
+		BitMask maskBits = BitMask.read(maskMap.get(map));
+		BitMask segBits = segProvided ? BitMask.read(segMap.get(map)) : null;
+		if(maskBits != null && (!segProvided || maskBits.isSameSize(segBits)))
 		{
-			ByteProcessor impSeg = (ByteProcessor) (new ImagePlus(segMap.get(map)).getProcessor().convertToByte(false));
-			ByteBlitter blit = new ByteBlitter(impMask);
-			blit.copyBits(impSeg, 0, 0, Blitter.AND);
+			// Bit-packed masks, AND them a word at a time
+			if(segProvided)
+			{
+				maskBits.and(segBits);
+			}
+			impMask = maskBits.toByteProcessor();
+		}
+		else
+		{
+			impMask = maskBits != null ? maskBits.toByteProcessor() : (ByteProcessor) (new ImagePlus(maskMap.get(map)).getProcessor().convertToByte(false));
+			if(segProvided)
+			{
+				ByteProcessor impSeg = segBits != null ? segBits.toByteProcessor() : (ByteProcessor) (new ImagePlus(segMap.get(map)).getProcessor().convertToByte(false));
+				ByteBlitter blit = new ByteBlitter(impMask);
+				blit.copyBits(impSeg, 0, 0, Blitter.AND);
+			}
 		}
 		DimensionMap coloredMap1 = map.copyAndSet(colorDimName + "=" + colors.get("1"));
 		DimensionMap coloredMap2 = map.copyAndSet(colorDimName + "=" + colors.get("2"));
@@ -24,6 +24,7 @@ import miscellaneous.StatisticsUtility;
 
 import org.scijava.plugin.Plugin;
 
+import plugins.maskHelpers.BitMask;
 import tables.DimTable;
 import tables.DimensionMap;
 import weka.core.converters.JEXTableWriter;
@@ -150,10 +151,23 @@ public class CTC_SingleCellQuantification extends JEXPlugin {
 		// Make the mask image impMask
 		// ByteProcessor impMask = (ByteProcessor) (new ImagePlus(maskMap.get(map)).getProcessor().convertToByte(false));
 		// ByteProcessor impSeg = (ByteProcessor) (new ImagePlus(segMap.get(map)).getProcessor().convertToByte(false));
-		ByteProcessor impSeg = (ByteProcessor) (new ImagePlus(segMap.get(map))).getProcessor();
-		ByteProcessor impMask = (ByteProcessor) (new ImagePlus(maskMap.get(map))).getProcessor();
-		ByteBlitter blit = new ByteBlitter(impSeg);
-		blit.copyBits(impMask, 0, 0, Blitter.AND);
+		ByteProcessor impSeg = null;
+		ByteProcessor impMask = null;
+		BitMask segBits = BitMask.read(segMap.get(map));
+		BitMask maskBits = BitMask.read(maskMap.get(map));
+		if(segBits != null && segBits.isSameSize(maskBits))
+		{
+			// Bit-packed masks, AND them a word at a time
+			impSeg = segBits.and(maskBits).toByteProcessor();
+			impMask = maskBits.toByteProcessor();
+		}
+		else
+		{
+			impSeg = segBits != null ? segBits.toByteProcessor() : (ByteProcessor) (new ImagePlus(segMap.get(map))).getProcessor();
+			impMask = maskBits != null ? maskBits.toByteProcessor() : (ByteProcessor) (new ImagePlus(maskMap.get(map))).getProcessor();
+			ByteBlitter blit = new ByteBlitter(impSeg);
+			blit.copyBits(impMask, 0, 0, Blitter.AND);
+		}
 		FloatProcessor impImage = (FloatProcessor) (new ImagePlus(imageMap.get(map))).getProcessor().convertToFloat();
 		Wand wand = new Wand(impSeg);
 		Wand wand2 = new Wand(impMask);
@@ -18,9 +18,12 @@ import ij.plugin.filter.RankFilters;
 import ij.process.FloatBlitter;
 import ij.process.FloatProcessor;
 import ij.process.FloatStatistics;
+import ij.process.ImageProcessor;
 import image.roi.ROIPlus;
 
+import java.awt.Rectangle;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
 
 import org.scijava.plugin.Plugin;
 
@@ -28,6 +31,10 @@ import jex.statics.JEXStatics;
 import jex.utilities.FunctionUtility;
 import jex.utilities.ImageUtility;
 import logs.Logs;
+import plugins.backgroundHelpers.BackgroundEngine;
+import plugins.calibrationHelpers.CalibrationCache;
+import plugins.calibrationHelpers.FusedCalibration;
+import plugins.calibrationHelpers.HistogramPeakAccumulator;
 import tables.DimensionMap;
 
 /**
@@ -88,6 +95,21 @@ public class CTC_SingleCell_BackGroundCorrectCalibrated extends JEXPlugin {
 	@ParameterMarker(uiOrder=7, name="Nominal Value to Add Back", description="Nominal value to add back to the image so that we don't clip values below zero", ui=MarkerConstants.UI_TEXTFIELD, defaultText="100")
 	double nominal;
 	
+	@ParameterMarker(uiOrder=8, name="Fused Pipeline?", description="Do the pointwise steps (DF subtraction, background subtraction, offset, IF division, nominal and crop) in single passes over reusable per-thread buffers. Same results with less memory traffic.", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=false)
+	boolean fused;
+	
+	@ParameterMarker(uiOrder=9, name="BG Sub. Engine", description="'Parallel' uses a background engine configured per entry whose passes run on all cores (results are close to but not identical with the original rolling ball/paraboloid). 'jBackgroundSubtracter' uses the original implementation, one entry at a time.", ui=MarkerConstants.UI_DROPDOWN, choices={ "jBackgroundSubtracter", "Parallel" }, defaultChoice=0)
+	String bgEngine;
+	
+	@ParameterMarker(uiOrder=10, name="Offset Estimation", description="How to find the remaining background offset (histogram peak within +/- sigma) after background subtraction. 'Streaming' fills the histogram during the background subtraction pass instead of scanning the image again (Fused Pipeline only). Bins are sized differently, so offsets can differ slightly from 'ImageUtility'.", ui=MarkerConstants.UI_DROPDOWN, choices={ "ImageUtility", "Streaming" }, defaultChoice=0)
+	String offsetEstimation;
+	
+	@ParameterMarker(uiOrder=11, name="Offset Sampling Stride", description="Streaming only. Use every n-th row and column for the offset histogram (1 = every pixel).", ui=MarkerConstants.UI_TEXTFIELD, defaultText="1")
+	int offsetStride;
+	
+	@ParameterMarker(uiOrder=12, name="Offset Tiles", description="Streaming only. Number of tiles along each side of the image, each with its own offset interpolated between tile centers (for uneven residual background). 1 = a single offset for the whole image.", ui=MarkerConstants.UI_TEXTFIELD, defaultText="1")
+	int offsetTiles;
+	
 	/////////// Define Outputs ///////////
 
 	@OutputMarker(uiOrder=0, name="Adjusted Image", type=MarkerConstants.TYPE_IMAGE, flavor="", description="Background subtracted using background subtraction function", enabled=true)
@@ -118,27 +140,31 @@ public class CTC_SingleCell_BackGroundCorrectCalibrated extends JEXPlugin {
 			return false;
 		}
 
-		FloatProcessor darkImp = null;
-		if(darkData != null && darkData.getTypeName().getType().equals(JEXData.IMAGE))
+		// The prepared DF and IF images are shared by all the entries (and
+		// threads) using the same calibration images and radius
+		final JEXData dark = (darkData != null && darkData.getTypeName().getType().equals(JEXData.IMAGE)) ? darkData : null;
+		final JEXData illum = (illumData != null && illumData.getTypeName().getType().equals(JEXData.IMAGE)) ? illumData : null;
+		CalibrationCache.Calibration calibration;
+		try
 		{
-			ImagePlus darkIm = ImageReader.readObjectToImagePlus(darkData);
-			if(darkIm == null)
-			{
-				return false;
-			}
-			darkImp = (FloatProcessor) darkIm.getProcessor().convertToFloat();
+			String key = CalibrationCache.getKey(new String[] { dark == null ? null : ImageReader.readObjectToImagePath(dark), illum == null ? null : ImageReader.readObjectToImagePath(illum) }, IFDFRadius);
+			calibration = CalibrationCache.get(key, new Callable<CalibrationCache.Calibration>() {
+				
+				@Override
+				public CalibrationCache.Calibration call() throws Exception
+				{
+					return prepareCalibration(dark, illum, IFDFRadius);
+				}
+			});
 		}
-
-		FloatProcessor illumImp = null;
-		if(illumData != null && illumData.getTypeName().getType().equals(JEXData.IMAGE))
+		catch (Exception e)
 		{
-			ImagePlus illumIm = ImageReader.readObjectToImagePlus(illumData);
-			if(illumIm == null)
-			{
-				return false;
-			}
-			illumImp = (FloatProcessor) illumIm.getProcessor().convertToFloat();
+			Logs.log("Couldn't prepare the calibration images.", Logs.ERROR, this);
+			e.printStackTrace();
+			return false;
 		}
+		FloatProcessor darkImp = calibration.getDarkProcessor();
+		FloatProcessor illumImp = calibration.getIllumProcessor();
 
 		TreeMap<DimensionMap,ROIPlus> roiMap = new TreeMap<DimensionMap,ROIPlus>();
 		if(roiData != null && roiData.getDataObjectType().equals(JEXData.ROI))
@@ -153,37 +179,6 @@ public class CTC_SingleCell_BackGroundCorrectCalibrated extends JEXPlugin {
 		// //// Create a reference to a Blitter for float operations
 		FloatBlitter blit = null;
 
-		if(illumImp != null)
-		{
-			// //// Prepare the illumination Field Image
-
-			// //// Subtract dark field from illumination field
-			blit = new FloatBlitter(illumImp);
-			if(darkImp != null)
-			{
-				blit.copyBits(darkImp, 0, 0, FloatBlitter.SUBTRACT);
-			}
-
-			if(IFDFRadius > 0)
-			{
-				// //// Smooth the result
-				ImagePlus IC = new ImagePlus("IC", illumImp);
-				RankFilters rF = new RankFilters();
-				rF.rank(illumImp, IFDFRadius, RankFilters.MEAN);
-				IC.flush();
-				IC = null;
-			}
-
-			// Calculate the mean of the illumination field correction for back
-			// multiplication
-			FloatStatistics illumStats = new FloatStatistics(illumImp, FloatStatistics.MEAN, null);
-			double illumMean = illumStats.mean;
-			illumStats = null;
-			illumImp.multiply(1 / illumMean); // Normalized IllumImp so we don't
-			// have to multiply back up all
-			// other images
-		}
-
 		int count = 0;
 		int total = images.size();
 		JEXStatics.statusBar.setProgressPercentage(0);
@@ -199,6 +194,27 @@ public class CTC_SingleCell_BackGroundCorrectCalibrated extends JEXPlugin {
 
 			// /// Get the image
 			ImagePlus im = new ImagePlus(path);
+			ROIPlus cropRoi = roiMap.get(dim);
+			
+			if(fused && (illumImp == null || (illumImp.getWidth() == im.getWidth() && illumImp.getHeight() == im.getHeight())))
+			{
+				FloatProcessor result = this.calibrateFused(im.getProcessor(), darkImp, illumImp, cropRoi);
+				if(result != null)
+				{
+					ImagePlus toSave = FunctionUtility.makeImageToSave(result, "false", outputDepth);
+					String finalPath1 = JEXWriter.saveImage(toSave);
+					
+					outputMap.put(dim.copy(), finalPath1);
+					Logs.log("Finished processing " + count + " of " + total + ".", 1, this);
+					count++;
+					
+					// Status bar
+					int percentage = (int) (100 * ((double) count / (double) images.size()));
+					JEXStatics.statusBar.setProgressPercentage(percentage);
+					continue;
+				}
+			}
+			
 			FloatProcessor imp = (FloatProcessor) im.getProcessor().convertToFloat(); // should
 			// be
 			// a
@@ -221,19 +237,7 @@ public class CTC_SingleCell_BackGroundCorrectCalibrated extends JEXPlugin {
 
 			// //// Subtract the background from the filtered (Image-DF)
 			FloatProcessor impTemp = new FloatProcessor(imp.getFloatArray());
-			RankFilters rF = new RankFilters();
-			rF.rank(impTemp, bgPresmoothRadius, RankFilters.MEAN);
-			ImagePlus imTemp = new ImagePlus("temp", impTemp);
-			jBackgroundSubtracter bS = new jBackgroundSubtracter();
-			bS.setup("", imTemp);
-			jBackgroundSubtracter.radius = bgRadius; // default rolling ball radius
-			// boolean bgInverse = false; // Boolean.parseBoolean(parameters.getValueOfParameter("Inverted"));
-			jBackgroundSubtracter.lightBackground = false;
-			jBackgroundSubtracter.createBackground = true;
-			// boolean bgPresmooth = false; // Boolean.parseBoolean(parameters.getValueOfParameter("Presmoothing"));
-			jBackgroundSubtracter.useParaboloid = bgParaboloid; // use "Sliding Paraboloid" instead of rolling ball algorithm
-			jBackgroundSubtracter.doPresmooth = false;
-			bS.run(impTemp);
+			this.estimateBackground(impTemp);
 
 			// subtract the calculated background from the image
 			blit.copyBits(impTemp, 0, 0, FloatBlitter.SUBTRACT);
@@ -277,7 +281,6 @@ public class CTC_SingleCell_BackGroundCorrectCalibrated extends JEXPlugin {
 			imp.add(nominal);
 
 			// //// crop if desired
-			ROIPlus cropRoi = roiMap.get(dim);
 			if(cropRoi != null)
 			{
 				imp.setRoi(cropRoi.getRoi());
@@ -305,4 +308,142 @@ public class CTC_SingleCell_BackGroundCorrectCalibrated extends JEXPlugin {
 		// Return status
 		return true;
 	}
+
+	/**
+	 * Same as the steps of run for a single image but with the pointwise steps
+	 * fused (see FusedCalibration).
+	 * 
+	 * @return the calibrated (and cropped) image in a per-thread buffer, valid
+	 *         until the next call on this thread, or null if the image isn't
+	 *         supported by the fused pipeline
+	 */
+	private FloatProcessor calibrateFused(ImageProcessor ip, FloatProcessor darkImp, FloatProcessor illumImp, ROIPlus cropRoi)
+	{
+		// (Image-DF) converted to float in one pass
+		FloatProcessor imp = FusedCalibration.toFloatMinusDark(ip, darkImp);
+		if(imp == null)
+		{
+			return null;
+		}
+		
+		if(imageDFRadius > 0)
+		{
+			// //// Smooth (Image-DF)
+			RankFilters rF = new RankFilters();
+			rF.rank(imp, imageDFRadius, RankFilters.MEDIAN);
+		}
+		
+		// //// Estimate and subtract the background from the filtered (Image-DF)
+		FloatProcessor impTemp = FusedCalibration.copyToBackground(imp);
+		this.estimateBackground(impTemp);
+		Rectangle crop = cropRoi == null ? null : cropRoi.getRoi().getBounds();
+		if(offsetEstimation.equals("Streaming"))
+		{
+			// histogram of the remainder filled during the subtraction
+			HistogramPeakAccumulator offsets = new HistogramPeakAccumulator(-sigma, sigma, imp.getWidth(), imp.getHeight(), offsetStride, offsetTiles);
+			FusedCalibration.subtract(imp, impTemp, offsets);
+			return FusedCalibration.finish(imp, offsets, illumImp, nominal, crop);
+		}
+		FusedCalibration.subtract(imp, impTemp);
+		
+		double remainderMean = ImageUtility.getHistogramPeakBin(imp, -sigma, sigma, -1, false);
+		
+		// (imp - remainder) / IF + nominal, only for the cropped region
+		return FusedCalibration.finish(imp, remainderMean, illumImp, nominal, crop);
+	}
+	
+	/**
+	 * Replace impTemp with its background (presmoothed rolling ball or
+	 * sliding paraboloid).
+	 */
+	private void estimateBackground(FloatProcessor impTemp)
+	{
+		RankFilters rF = new RankFilters();
+		rF.rank(impTemp, bgPresmoothRadius, RankFilters.MEAN);
+		if(bgEngine != null && bgEngine.equals("Parallel"))
+		{
+			new BackgroundEngine(bgRadius, bgParaboloid, false).createBackground(impTemp);
+			return;
+		}
+		// jBackgroundSubtracter is configured through static fields so only
+		// one entry can use it at a time
+		synchronized(jBackgroundSubtracter.class)
+		{
+			ImagePlus imTemp = new ImagePlus("temp", impTemp);
+			jBackgroundSubtracter bS = new jBackgroundSubtracter();
+			bS.setup("", imTemp);
+			jBackgroundSubtracter.radius = bgRadius; // default rolling ball radius
+			// boolean bgInverse = false; // Boolean.parseBoolean(parameters.getValueOfParameter("Inverted"));
+			jBackgroundSubtracter.lightBackground = false;
+			jBackgroundSubtracter.createBackground = true;
+			// boolean bgPresmooth = false; // Boolean.parseBoolean(parameters.getValueOfParameter("Presmoothing"));
+			jBackgroundSubtracter.useParaboloid = bgParaboloid; // use "Sliding Paraboloid" instead of rolling ball algorithm
+			jBackgroundSubtracter.doPresmooth = false;
+			bS.run(impTemp);
+		}
+	}
+
+	/**
+	 * Read the DF and IF images, subtract DF from IF, smooth the result and
+	 * normalize it by its mean.
+	 */
+	private static CalibrationCache.Calibration prepareCalibration(JEXData darkData, JEXData illumData, double IFDFRadius) throws Exception
+	{
+		FloatProcessor darkImp = null;
+		if(darkData != null)
+		{
+			ImagePlus darkIm = ImageReader.readObjectToImagePlus(darkData);
+			if(darkIm == null)
+			{
+				throw new Exception("Couldn't read the DF image.");
+			}
+			darkImp = (FloatProcessor) darkIm.getProcessor().convertToFloat();
+		}
+
+		FloatProcessor illumImp = null;
+		if(illumData != null)
+		{
+			ImagePlus illumIm = ImageReader.readObjectToImagePlus(illumData);
+			if(illumIm == null)
+			{
+				throw new Exception("Couldn't read the IF image.");
+			}
+			illumImp = (FloatProcessor) illumIm.getProcessor().convertToFloat();
+		}
+
+		// //// Create a reference to a Blitter for float operations
+		FloatBlitter blit = null;
+
+		if(illumImp != null)
+		{
+			// //// Prepare the illumination Field Image
+
+			// //// Subtract dark field from illumination field
+			blit = new FloatBlitter(illumImp);
+			if(darkImp != null)
+			{
+				blit.copyBits(darkImp, 0, 0, FloatBlitter.SUBTRACT);
+			}
+
+			if(IFDFRadius > 0)
+			{
+				// //// Smooth the result
+				ImagePlus IC = new ImagePlus("IC", illumImp);
+				RankFilters rF = new RankFilters();
+				rF.rank(illumImp, IFDFRadius, RankFilters.MEAN);
+				IC.flush();
+				IC = null;
+			}
+
+			// Calculate the mean of the illumination field correction for back
+			// multiplication
+			FloatStatistics illumStats = new FloatStatistics(illumImp, FloatStatistics.MEAN, null);
+			double illumMean = illumStats.mean;
+			illumStats = null;
+			illumImp.multiply(1 / illumMean); // Normalized IllumImp so we don't
+			// have to multiply back up all
+			// other images
+		}
+		return new CalibrationCache.Calibration(darkImp, illumImp);
+	}
 }
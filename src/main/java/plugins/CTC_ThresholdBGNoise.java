@@ -2,9 +2,18 @@ package plugins;
 
 import ij.ImagePlus;
 import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
 import image.roi.ROIPlus;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jex.statics.JEXStatics;
 import jex.utilities.FunctionUtility;
@@ -14,6 +23,12 @@ import miscellaneous.StatisticsUtility;
 
 import org.scijava.plugin.Plugin;
 
+import plugins.maskHelpers.BitMask;
+import plugins.parallelHelpers.PlaneExecutor;
+import plugins.thresholdHelpers.HistogramStatistics;
+import plugins.thresholdHelpers.RoiSpans;
+import plugins.thresholdHelpers.ThresholdMask;
+import plugins.tiffHelpers.TiffHistogramReader;
 import tables.Dim;
 import tables.DimTable;
 import tables.DimensionMap;
@@ -65,6 +80,18 @@ public class CTC_ThresholdBGNoise extends JEXPlugin {
 	@ParameterMarker(uiOrder=4, name="Mean, median, or mode?", description="Should the threshold be measured relative to the image mean, median, or mode?", ui=MarkerConstants.UI_DROPDOWN, choices={"Mean", "Median", "Mode"}, defaultChoice=2)
 	String method;
 	
+	@ParameterMarker(uiOrder=5, name="Histogram Statistics?", description="Compute the mean, median, mode and MAD from a histogram of the pixels instead of sorting a copy of them, and make the masks directly from the pixels, keeping images in memory between the two passes of the per color threshold when possible (same results).", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=true)
+	boolean histogramStats;
+	
+	@ParameterMarker(uiOrder=6, name="Bit-Packed Masks?", description="Save the thresholded images as 1-bit TIFF files (8x smaller, opened as 0/255 8-bit images).", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=false)
+	boolean bitPackedMasks;
+	
+	@ParameterMarker(uiOrder=7, name="Scanline Roi Pixels?", description="With histogram statistics, read the pixels inside area rois row by row from spans made once per roi (pixels in the ImageJ mask of the roi) instead of collecting them with ROIUtility.", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=false)
+	boolean scanlineRoi;
+	
+	@ParameterMarker(uiOrder=8, name="Plane Threads", description="With histogram statistics, number of images of the object processed at the same time within each entry (1 = one after the other).", ui=MarkerConstants.UI_TEXTFIELD, defaultText="1")
+	int planeThreads;
+	
 	/////////// Define Outputs ///////////
 	
 	@OutputMarker(uiOrder=1, name="Thresholded Image", type=MarkerConstants.TYPE_IMAGE, flavor="", description="The resultant thresholded image", enabled=true)
@@ -76,6 +103,11 @@ public class CTC_ThresholdBGNoise extends JEXPlugin {
 	@OutputMarker(uiOrder=3, name="Thresholds", type=MarkerConstants.TYPE_FILE, flavor="", description="The resultant calculated thresholds based on the number of sigma set by the user.", enabled=true)
 	JEXData outputThresholds;
 	
+	// Images kept in memory between the two phases of calcPerColorTwoPhase take at most 1/KEEP_MEMORY_FRACTION of the max memory,
+	// shared by all the entries running at the same time
+	private static final int KEEP_MEMORY_FRACTION = 8;
+	private static final AtomicLong keepBudget = new AtomicLong(Runtime.getRuntime().maxMemory() / KEEP_MEMORY_FRACTION);
+	
 	@Override
 	public int getMaxThreads()
 	{
@@ -133,6 +165,10 @@ public class CTC_ThresholdBGNoise extends JEXPlugin {
 		{
 			return this.calcIndividual(true, imageMap, table, rois, nSigma);
 		}
+		if(histogramStats)
+		{
+			return this.calcPerColorTwoPhase(colorDimName, imageMap, table, rois, nSigma);
+		}
 		
 		TreeMap<DimensionMap,String> outputMap = new TreeMap<DimensionMap,String>();
 		TreeMap<DimensionMap,Double> statsMap = new TreeMap<DimensionMap,Double>();
@@ -162,7 +198,7 @@ public class CTC_ThresholdBGNoise extends JEXPlugin {
 					success = false;
 					return this.makeTreeMap("Success", false);
 				}
-				String path = JEXWriter.saveImage(FunctionUtility.makeImageToSave(ip, "false", 8)); // Creating black and white image
+				String path = this.saveMask(FunctionUtility.makeImageToSave(ip, "false", 8)); // Creating black and white image
 				outputMap.put(map.copy(), path);
 			}
 			
@@ -176,6 +212,10 @@ public class CTC_ThresholdBGNoise extends JEXPlugin {
 	
 	public TreeMap<String,Object> calcIndividual(boolean threshImages, TreeMap<DimensionMap,String> imageMap, DimTable dimsToProcess, TreeMap<DimensionMap,ROIPlus> rois, double nSigma)
 	{
+		if(histogramStats && planeThreads > 1)
+		{
+			return this.calcIndividualInParallel(threshImages, imageMap, dimsToProcess, rois, nSigma);
+		}
 		int percentage = 0;
 		double count = 0, total = dimsToProcess.mapCount();
 		TreeMap<DimensionMap,String> outputMap = new TreeMap<DimensionMap,String>();
@@ -191,49 +231,69 @@ public class CTC_ThresholdBGNoise extends JEXPlugin {
 			
 			// Get the image
 			ImagePlus im = new ImagePlus(imageMap.get(map));
-			FloatProcessor ip = (FloatProcessor) im.getProcessor().convertToFloat();
-			
-			// Do threshold
 			ROIPlus roi = rois.get(map);
-			float[] tempPixels = null;
-			if(roi != null)
-			{
-				tempPixels = ROIUtility.getPixelsInRoi(ip, roi);
-			}
-			if(tempPixels == null)
-			{
-				tempPixels = (float[]) ip.getPixels();
-			}
-			double[] pixels = new double[tempPixels.length];
-			int i = 0;
-			for (float f : tempPixels)
-			{
-				pixels[i] = f;
-				i++;
-			}
-			tempPixels = null;
+			FloatProcessor ip = null;
 			double center = -1;
-			if(method.equals("Mean"))
+			double mad = -1;
+			if(histogramStats)
 			{
-				center = StatisticsUtility.mean(pixels);
-			}
-			else if(method.equals("Median"))
-			{
-				center = StatisticsUtility.median(pixels);
+				// Do threshold
+				HistogramStatistics stats = this.getStatistics(im.getProcessor(), roi);
+				center = this.getCenter(stats);
+				mad = stats.getMad(center); // Multiplier converts the mad to an approximation of the standard deviation without the effects of outliers
+				if(this.isCanceled())
+				{
+					return this.makeTreeMap("Success", false);
+				}
 			}
 			else
 			{
-				double[] modes = StatisticsUtility.modes(pixels);
-				center = modes[0];
-			}
-			if(this.isCanceled())
-			{
-				return this.makeTreeMap("Success", false);
+				ip = (FloatProcessor) im.getProcessor().convertToFloat();
+				
+				// Do threshold
+				float[] tempPixels = null;
+				if(roi != null)
+				{
+					tempPixels = ROIUtility.getPixelsInRoi(ip, roi);
+				}
+				if(tempPixels == null)
+				{
+					tempPixels = (float[]) ip.getPixels();
+				}
+				double[] pixels = new double[tempPixels.length];
+				int i = 0;
+				for (float f : tempPixels)
+				{
+					pixels[i] = f;
+					i++;
+				}
+				tempPixels = null;
+				if(method.equals("Mean"))
+				{
+					center = StatisticsUtility.mean(pixels);
+				}
+				else if(method.equals("Median"))
+				{
+					center = StatisticsUtility.median(pixels);
+				}
+				else
+				{
+					double[] modes = StatisticsUtility.modes(pixels);
+					center = modes[0];
+				}
+				if(this.isCanceled())
+				{
+					return this.makeTreeMap("Success", false);
+				}
+				mad = StatisticsUtility.mad(center, pixels); // Multiplier converts the mad to an approximation of the standard deviation without the effects of outliers
 			}
-			double mad = StatisticsUtility.mad(center, pixels); // Multiplier converts the mad to an approximation of the standard deviation without the effects of outliers
 			double threshold = center + nSigma * mad;
 			String path = null;
-			if(threshImages)
+			if(threshImages && histogramStats)
+			{
+				path = this.saveMask(ThresholdMask.make(im.getProcessor(), threshold)); // Creating black and white image
+			}
+			else if(threshImages)
 			{
 				FunctionUtility.imThresh(ip, threshold, false);
 				if(this.isCanceled())
@@ -241,7 +301,7 @@ public class CTC_ThresholdBGNoise extends JEXPlugin {
 					success = false;
 					return this.makeTreeMap("Success", false);
 				}
-				path = JEXWriter.saveImage(FunctionUtility.makeImageToSave(ip, "false", 8)); // Creating black and white image
+				path = this.saveMask(FunctionUtility.makeImageToSave(ip, "false", 8)); // Creating black and white image
 			}
 			
 			if(path != null)
@@ -266,6 +326,257 @@ public class CTC_ThresholdBGNoise extends JEXPlugin {
 		return ret;
 	}
 	
+	/**
+	 * Same results as calcPerColor but each image is read once to get its
+	 * threshold and, unless it is still in memory, once more to save its
+	 * mask (made directly from the image pixels). Images that aren't kept and
+	 * have no roi are only counted from their file for the first pass. The
+	 * images of each pass are processed on planeThreads threads.
+	 */
+	public TreeMap<String,Object> calcPerColorTwoPhase(String colorDimName, final TreeMap<DimensionMap,String> imageMap, DimTable table, final TreeMap<DimensionMap,ROIPlus> rois, final double nSigma)
+	{
+		TreeMap<DimensionMap,String> outputMap = new TreeMap<DimensionMap,String>();
+		final TreeMap<DimensionMap,Double> statsMap = new TreeMap<DimensionMap,Double>();
+		TreeMap<DimensionMap,Double> outputThreshMap = new TreeMap<DimensionMap,Double>();
+		PlaneExecutor executor = new PlaneExecutor(planeThreads);
+		for (DimTable subTable : table.getSubTableIterator(colorDimName))
+		{
+			Dim colorSubDim = subTable.getDimWithName(colorDimName);
+			List<DimensionMap> maps = new ArrayList<DimensionMap>();
+			for (DimensionMap map : subTable.getMapIterator())
+			{
+				maps.add(map.copy());
+			}
+			
+			// Phase 1: threshold of each image, keeping the images that fit in the memory budget
+			final Map<DimensionMap,ImageProcessor> kept = Collections.synchronizedMap(new TreeMap<DimensionMap,ImageProcessor>());
+			final AtomicBoolean full = new AtomicBoolean(false);
+			final TreeMap<DimensionMap,Double> thresholds = new TreeMap<DimensionMap,Double>();
+			try
+			{
+				TreeMap<DimensionMap,String> done = executor.run(maps, new PlaneExecutor.PlaneFunction() {
+					
+					@Override
+					public String process(DimensionMap map)
+					{
+						ROIPlus roi = rois.get(map);
+						HistogramStatistics stats = null;
+						if(full.get() && roi == null)
+						{
+							stats = readStatistics(imageMap.get(map));
+						}
+						if(stats == null)
+						{
+							ImageProcessor ip = new ImagePlus(imageMap.get(map)).getProcessor();
+							stats = getStatistics(ip, roi);
+							long size = getBytes(ip);
+							if(keepBudget.addAndGet(-size) >= 0)
+							{
+								kept.put(map, ip);
+							}
+							else
+							{
+								keepBudget.addAndGet(size);
+								full.set(true);
+							}
+						}
+						double center = getCenter(stats);
+						double mad = stats.getMad(center);
+						synchronized(statsMap)
+						{
+							thresholds.put(map, center + nSigma * mad);
+							DimensionMap map2 = map.copy();
+							map2.put("Measurement", method);
+							statsMap.put(map2.copy(), center);
+							map2.put("Measurement", "MAD");
+							statsMap.put(map2.copy(), mad);
+						}
+						return null;
+					}
+				}, this);
+				if(done == null)
+				{
+					return this.makeTreeMap("Success", false);
+				}
+				
+				// Get the median threshold
+				final Double thresh = StatisticsUtility.median(thresholds.values());
+				
+				// Phase 2: threshold all images for this subtable using the threshold
+				TreeMap<DimensionMap,String> paths = executor.run(maps, new PlaneExecutor.PlaneFunction() {
+					
+					@Override
+					public String process(DimensionMap map)
+					{
+						ImageProcessor ip = kept.remove(map);
+						if(ip == null)
+						{
+							return saveMask(ThresholdMask.make(new ImagePlus(imageMap.get(map)).getProcessor(), thresh)); // Creating black and white image
+						}
+						try
+						{
+							return saveMask(ThresholdMask.make(ip, thresh));
+						}
+						finally
+						{
+							// Give back its memory once the kept image is done
+							keepBudget.addAndGet(getBytes(ip));
+						}
+					}
+				}, this);
+				if(paths == null)
+				{
+					return this.makeTreeMap("Success", false);
+				}
+				outputMap.putAll(paths);
+				
+				outputThreshMap.put(new DimensionMap(colorSubDim.dimName + "=" + colorSubDim.valueAt(0)), thresh);
+			}
+			finally
+			{
+				// Give back the memory of the images still kept (canceled or failed)
+				synchronized(kept)
+				{
+					for (ImageProcessor ip : kept.values())
+					{
+						keepBudget.addAndGet(getBytes(ip));
+					}
+					kept.clear();
+				}
+			}
+		}
+		
+		return this.makeTreeMap("Success,outputMap,statsMap,outputThreshMap", true, outputMap, statsMap, outputThreshMap);
+	}
+	
+	/**
+	 * calcIndividual with histogram statistics and planeThreads threads (the
+	 * results are merged by DimensionMap so they don't depend on the order in
+	 * which images finish).
+	 */
+	public TreeMap<String,Object> calcIndividualInParallel(final boolean threshImages, final TreeMap<DimensionMap,String> imageMap, DimTable dimsToProcess, final TreeMap<DimensionMap,ROIPlus> rois, final double nSigma)
+	{
+		final TreeMap<DimensionMap,Double> statsMap = new TreeMap<DimensionMap,Double>();
+		final TreeMap<DimensionMap,Double> outputThreshMap = new TreeMap<DimensionMap,Double>();
+		List<DimensionMap> maps = new ArrayList<DimensionMap>();
+		for (DimensionMap map : dimsToProcess.getMapIterator())
+		{
+			maps.add(map.copy());
+		}
+		TreeMap<DimensionMap,String> outputMap = new PlaneExecutor(planeThreads).run(maps, new PlaneExecutor.PlaneFunction() {
+			
+			@Override
+			public String process(DimensionMap map)
+			{
+				ImageProcessor ip = new ImagePlus(imageMap.get(map)).getProcessor();
+				HistogramStatistics stats = getStatistics(ip, rois.get(map));
+				double center = getCenter(stats);
+				double mad = stats.getMad(center); // Multiplier converts the mad to an approximation of the standard deviation without the effects of outliers
+				double threshold = center + nSigma * mad;
+				synchronized(statsMap)
+				{
+					DimensionMap map2 = map.copy();
+					map2.put("Measurement", method);
+					statsMap.put(map2.copy(), center);
+					map2.put("Measurement", "MAD");
+					statsMap.put(map2.copy(), mad);
+					outputThreshMap.put(map, threshold);
+				}
+				if(!threshImages)
+				{
+					return null;
+				}
+				return saveMask(ThresholdMask.make(ip, threshold)); // Creating black and white image
+			}
+		}, this);
+		if(outputMap == null)
+		{
+			return this.makeTreeMap("Success", false);
+		}
+		
+		return this.makeTreeMap("Success,outputMap,statsMap,outputThreshMap", true, outputMap, statsMap, outputThreshMap);
+	}
+	
+	private static long getBytes(ImageProcessor ip)
+	{
+		return ((long) ip.getWidth()) * ip.getHeight() * ip.getBitDepth() / 8;
+	}
+	
+	/**
+	 * @return the statistics of the 8- or 16-bit TIFF at path counted straight
+	 *         from its file, or null if it has to be opened with ImageJ
+	 */
+	private static HistogramStatistics readStatistics(String path)
+	{
+		try
+		{
+			int[] counts = TiffHistogramReader.read(new File(path));
+			return counts == null ? null : HistogramStatistics.ofCounts(counts);
+		}
+		catch (IOException e)
+		{
+			// ImageJ reports what's wrong with the file
+			return null;
+		}
+	}
+	
+	/**
+	 * @return the statistics of the pixels of ip in roi (or of all of them
+	 *         if there is no roi)
+	 */
+	private HistogramStatistics getStatistics(ImageProcessor ip, ROIPlus roi)
+	{
+		if(roi != null && scanlineRoi)
+		{
+			RoiSpans spans = RoiSpans.get(roi);
+			if(spans != null)
+			{
+				return HistogramStatistics.of(ip, spans);
+			}
+		}
+		if(roi != null)
+		{
+			float[] tempPixels = ROIUtility.getPixelsInRoi((FloatProcessor) ip.convertToFloat(), roi);
+			if(tempPixels != null)
+			{
+				return HistogramStatistics.of(tempPixels);
+			}
+		}
+		// straight from the 8- or 16-bit pixels
+		return HistogramStatistics.of(ip);
+	}
+	
+	private double getCenter(HistogramStatistics stats)
+	{
+		if(method.equals("Mean"))
+		{
+			return stats.getMean();
+		}
+		else if(method.equals("Median"))
+		{
+			return stats.getMedian();
+		}
+		return stats.getMode();
+	}
+	
+	private String saveMask(ImagePlus mask)
+	{
+		if(bitPackedMasks)
+		{
+			return BitMask.saveImage(mask.getProcessor());
+		}
+		return JEXWriter.saveImage(mask);
+	}
+	
+	private String saveMask(ImageProcessor mask)
+	{
+		if(bitPackedMasks)
+		{
+			return BitMask.saveImage(mask);
+		}
+		return JEXWriter.saveImage(mask);
+	}
+	
 	public TreeMap<String,Object> makeTreeMap(String csvString, Object... items)
 	{
 		CSVList names = new CSVList(csvString);
@@ -0,0 +1,179 @@
+package plugins.adjustHelpers;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jex.utilities.FunctionUtility;
+
+/**
+ * Intensity adjustment of 8- and 16-bit images through a lookup table from
+ * each possible input value to the output pixel value, so adjusting an image
+ * is a single pass from the source pixels to the output pixels with no float
+ * image or per pixel Math.pow.
+ *
+ * Each table is made by running FunctionUtility.imAdjust and
+ * FunctionUtility.makeImageToSave on an image holding every input value,
+ * which gives the same output as adjusting each image with them. Tables are
+ * read-only once made and are shared by all threads using the same
+ * parameters.
+ *
+ */
+public class AdjustLookupTable {
+
+	private static final int CACHED_TABLES = 16;
+
+	private static final Map<String,Object> tables = new LinkedHashMap<String,Object>(CACHED_TABLES, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Object> eldest)
+		{
+			return this.size() > CACHED_TABLES;
+		}
+	};
+
+	/**
+	 * @return whether ip can be adjusted with a lookup table (uncalibrated 8-
+	 *         or 16-bit images)
+	 */
+	public static boolean isSupported(ImageProcessor ip)
+	{
+		return (ip instanceof ByteProcessor || ip instanceof ShortProcessor) && ip.getCalibrationTable() == null;
+	}
+
+	/**
+	 * @return ip adjusted and converted to bitDepth, or null if ip isn't
+	 *         supported
+	 */
+	public static ImageProcessor adjust(ImageProcessor ip, double oldMin, double oldMax, double newMin, double newMax, double gamma, int bitDepth)
+	{
+		if(!isSupported(ip))
+		{
+			return null;
+		}
+		int inputBitDepth = ip instanceof ByteProcessor ? 8 : 16;
+		Object table = getTable(inputBitDepth, oldMin, oldMax, newMin, newMax, gamma, bitDepth);
+		Object pixels = ip.getPixels();
+		int width = ip.getWidth(), height = ip.getHeight();
+		int n = width * height;
+		if(table instanceof byte[])
+		{
+			byte[] lut = (byte[]) table;
+			byte[] out = new byte[n];
+			if(pixels instanceof byte[])
+			{
+				byte[] p = (byte[]) pixels;
+				for (int i = 0; i < n; i++)
+				{
+					out[i] = lut[p[i] & 0xff];
+				}
+			}
+			else
+			{
+				short[] p = (short[]) pixels;
+				for (int i = 0; i < n; i++)
+				{
+					out[i] = lut[p[i] & 0xffff];
+				}
+			}
+			return new ByteProcessor(width, height, out, null);
+		}
+		else if(table instanceof short[])
+		{
+			short[] lut = (short[]) table;
+			short[] out = new short[n];
+			if(pixels instanceof byte[])
+			{
+				byte[] p = (byte[]) pixels;
+				for (int i = 0; i < n; i++)
+				{
+					out[i] = lut[p[i] & 0xff];
+				}
+			}
+			else
+			{
+				short[] p = (short[]) pixels;
+				for (int i = 0; i < n; i++)
+				{
+					out[i] = lut[p[i] & 0xffff];
+				}
+			}
+			return new ShortProcessor(width, height, out, null);
+		}
+		float[] lut = (float[]) table;
+		float[] out = new float[n];
+		if(pixels instanceof byte[])
+		{
+			byte[] p = (byte[]) pixels;
+			for (int i = 0; i < n; i++)
+			{
+				out[i] = lut[p[i] & 0xff];
+			}
+		}
+		else
+		{
+			short[] p = (short[]) pixels;
+			for (int i = 0; i < n; i++)
+			{
+				out[i] = lut[p[i] & 0xffff];
+			}
+		}
+		return new FloatProcessor(width, height, out, null);
+	}
+
+	/**
+	 * @return the (shared, don't modify) table from each input value to the
+	 *         output pixel value (byte[], short[] or float[] depending on
+	 *         the output type)
+	 */
+	public static Object getTable(int inputBitDepth, double oldMin, double oldMax, double newMin, double newMax, double gamma, int bitDepth)
+	{
+		String key = inputBitDepth + "|" + oldMin + "|" + oldMax + "|" + newMin + "|" + newMax + "|" + gamma + "|" + bitDepth;
+		synchronized(tables)
+		{
+			Object ret = tables.get(key);
+			if(ret != null)
+			{
+				return ret;
+			}
+		}
+		// Computed outside the lock; threads racing for the same table make
+		// identical tables
+		Object ret = makeTable(inputBitDepth, oldMin, oldMax, newMin, newMax, gamma, bitDepth);
+		synchronized(tables)
+		{
+			tables.put(key, ret);
+		}
+		return ret;
+	}
+
+	private static Object makeTable(int inputBitDepth, double oldMin, double oldMax, double newMin, double newMax, double gamma, int bitDepth)
+	{
+		// Image of all the input values
+		int width = 256, height = inputBitDepth == 8 ? 1 : 256;
+		float[] values = new float[width * height];
+		for (int i = 0; i < values.length; i++)
+		{
+			values[i] = i;
+		}
+		FloatProcessor imp = new FloatProcessor(width, height, values, null);
+		FunctionUtility.imAdjust(imp, oldMin, oldMax, newMin, newMax, gamma);
+		Object pixels = FunctionUtility.makeImageToSave(imp, "false", bitDepth).getProcessor().getPixels();
+		// Own copy in case makeImageToSave kept the pixels of imp
+		if(pixels instanceof byte[])
+		{
+			return ((byte[]) pixels).clone();
+		}
+		else if(pixels instanceof short[])
+		{
+			return ((short[]) pixels).clone();
+		}
+		return ((float[]) pixels).clone();
+	}
+}
@@ -0,0 +1,499 @@
+package plugins.backgroundHelpers;
+
+import ij.process.FloatProcessor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+
+import plugins.parallelHelpers.ParallelUtility;
+
+/**
+ * Rolling ball / sliding paraboloid background estimation configured per
+ * instance (unlike jBackgroundSubtracter, which is configured through static
+ * fields) so concurrent entries can use different settings safely. The lines
+ * of each pass are processed in parallel on the shared worker pool.
+ *
+ * The sliding paraboloid is computed as a sequence of 1D grayscale openings
+ * with a parabola (x, y, x and the two diagonals, as in ImageJ) using the
+ * lower envelope of parabolas, so each line costs O(length) whatever the
+ * radius. The rolling ball follows ImageJ's approach: the image is shrunk
+ * (minimum of blocks) for large radii, opened with a trimmed ball and
+ * interpolated back to full size.
+ *
+ * Results are close to but not bit-identical with jBackgroundSubtracter (no
+ * corner correction and a simpler interpolation).
+ *
+ */
+public class BackgroundEngine {
+
+	private final double radius;
+	private final boolean paraboloid;
+	private final boolean lightBackground;
+
+	/**
+	 * @param radius rolling ball radius or paraboloid curvature radius
+	 * @param paraboloid use a sliding paraboloid instead of a rolling ball
+	 * @param lightBackground the background is brighter than the objects
+	 */
+	public BackgroundEngine(double radius, boolean paraboloid, boolean lightBackground)
+	{
+		this.radius = radius;
+		this.paraboloid = paraboloid;
+		this.lightBackground = lightBackground;
+	}
+
+	/**
+	 * Replace the pixels of fp with its background.
+	 *
+	 * @return false if a parallel task failed
+	 */
+	public boolean createBackground(FloatProcessor fp)
+	{
+		float[] pixels = (float[]) fp.getPixels();
+		if(this.lightBackground)
+		{
+			invert(pixels);
+		}
+		boolean ret;
+		if(this.paraboloid)
+		{
+			ret = this.slidingParaboloid(pixels, fp.getWidth(), fp.getHeight());
+		}
+		else
+		{
+			ret = this.rollingBall(fp);
+		}
+		if(this.lightBackground)
+		{
+			invert(pixels);
+		}
+		fp.resetMinAndMax();
+		return ret;
+	}
+
+	/**
+	 * Subtract the background from fp, in place.
+	 *
+	 * @return false if a parallel task failed
+	 */
+	public boolean subtractBackground(FloatProcessor fp)
+	{
+		float[] pixels = (float[]) fp.getPixels();
+		FloatProcessor bg = new FloatProcessor(fp.getWidth(), fp.getHeight(), pixels.clone(), null);
+		if(!this.createBackground(bg))
+		{
+			return false;
+		}
+		float[] bgPixels = (float[]) bg.getPixels();
+		for (int i = 0; i < pixels.length; i++)
+		{
+			pixels[i] = pixels[i] - bgPixels[i];
+		}
+		fp.resetMinAndMax();
+		return true;
+	}
+
+	private static void invert(float[] pixels)
+	{
+		for (int i = 0; i < pixels.length; i++)
+		{
+			pixels[i] = -pixels[i];
+		}
+	}
+
+	// ------------------------------------------------------------------
+	// Sliding paraboloid
+	// ------------------------------------------------------------------
+
+	private static final int X = 0, Y = 1, DIAGONAL_1 = 2, DIAGONAL_2 = 3;
+
+	private boolean slidingParaboloid(float[] pixels, int width, int height)
+	{
+		// parabola y = coeff * d^2 with d in steps along the line (diagonal
+		// steps are sqrt(2) long)
+		double coeff = 0.5 / this.radius;
+		double coeffDiagonal = 1.0 / this.radius;
+		return openLines(pixels, width, height, X, coeff) && openLines(pixels, width, height, Y, coeff) && openLines(pixels, width, height, X, coeff) && openLines(pixels, width, height, DIAGONAL_1, coeffDiagonal) && openLines(pixels, width, height, DIAGONAL_2, coeffDiagonal) && openLines(pixels, width, height, DIAGONAL_1, coeffDiagonal);
+	}
+
+	/**
+	 * Open all the lines of the image in the given direction, in parallel.
+	 */
+	private static boolean openLines(final float[] pixels, final int width, final int height, final int direction, final double coeff)
+	{
+		final int lines;
+		if(direction == X)
+		{
+			lines = height;
+		}
+		else if(direction == Y)
+		{
+			lines = width;
+		}
+		else
+		{
+			lines = width + height - 1;
+		}
+		int[] bounds = ParallelUtility.getBands(lines, 16);
+		List<Callable<Boolean>> tasks = new Vector<Callable<Boolean>>();
+		for (int b = 0; b < bounds.length - 1; b++)
+		{
+			final int first = bounds[b];
+			final int last = bounds[b + 1];
+			tasks.add(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call()
+				{
+					int length = Math.max(width, height);
+					ParabolicOpening opening = new ParabolicOpening(length);
+					int[] indices = new int[length];
+					double[] line = new double[length];
+					for (int l = first; l < last; l++)
+					{
+						int n = getLine(l, width, height, direction, indices);
+						for (int i = 0; i < n; i++)
+						{
+							line[i] = pixels[indices[i]];
+						}
+						opening.open(line, n, coeff);
+						for (int i = 0; i < n; i++)
+						{
+							pixels[indices[i]] = (float) line[i];
+						}
+					}
+					return true;
+				}
+			});
+		}
+		return ParallelUtility.invokeAll(tasks);
+	}
+
+	/**
+	 * Put the pixel indices of line l in the given direction into indices.
+	 *
+	 * @return the number of pixels of the line
+	 */
+	private static int getLine(int l, int width, int height, int direction, int[] indices)
+	{
+		int x, y, dx, dy;
+		if(direction == X)
+		{
+			x = 0;
+			y = l;
+			dx = 1;
+			dy = 0;
+		}
+		else if(direction == Y)
+		{
+			x = l;
+			y = 0;
+			dx = 0;
+			dy = 1;
+		}
+		else if(direction == DIAGONAL_1)
+		{
+			// down and to the right, starting on the left column or top row
+			x = l < height ? 0 : l - height + 1;
+			y = l < height ? height - 1 - l : 0;
+			dx = 1;
+			dy = 1;
+		}
+		else
+		{
+			// down and to the left, starting on the top row or right column
+			x = l < width ? l : width - 1;
+			y = l < width ? 0 : l - width + 1;
+			dx = -1;
+			dy = 1;
+		}
+		int n = 0;
+		while (x >= 0 && x < width && y >= 0 && y < height)
+		{
+			indices[n] = y * width + x;
+			n++;
+			x = x + dx;
+			y = y + dy;
+		}
+		return n;
+	}
+
+	/**
+	 * 1D grayscale opening with the parabola coeff * d^2 (erosion then
+	 * dilation), each computed in linear time as the lower envelope of
+	 * parabolas.
+	 */
+	private static class ParabolicOpening {
+
+		private final int[] v;
+		private final double[] z, eroded;
+
+		ParabolicOpening(int length)
+		{
+			this.v = new int[length];
+			this.z = new double[length + 1];
+			this.eroded = new double[length];
+		}
+
+		void open(double[] line, int n, double coeff)
+		{
+			// erosion: e(q) = min_p line(p) + coeff (q - p)^2
+			this.lowerEnvelope(line, n, coeff, this.eroded);
+			// dilation: d(q) = max_p e(p) - coeff (q - p)^2 = -min_p (-e(p) + coeff (q - p)^2)
+			for (int i = 0; i < n; i++)
+			{
+				this.eroded[i] = -this.eroded[i];
+			}
+			this.lowerEnvelope(this.eroded, n, coeff, line);
+			for (int i = 0; i < n; i++)
+			{
+				line[i] = -line[i];
+			}
+		}
+
+		private void lowerEnvelope(double[] f, int n, double coeff, double[] out)
+		{
+			if(n == 0)
+			{
+				return;
+			}
+			int k = 0;
+			this.v[0] = 0;
+			this.z[0] = Double.NEGATIVE_INFINITY;
+			this.z[1] = Double.POSITIVE_INFINITY;
+			for (int q = 1; q < n; q++)
+			{
+				double s = intersection(f, q, this.v[k], coeff);
+				while (s <= this.z[k])
+				{
+					k--;
+					s = intersection(f, q, this.v[k], coeff);
+				}
+				k++;
+				this.v[k] = q;
+				this.z[k] = s;
+				this.z[k + 1] = Double.POSITIVE_INFINITY;
+			}
+			k = 0;
+			for (int q = 0; q < n; q++)
+			{
+				while (this.z[k + 1] < q)
+				{
+					k++;
+				}
+				double d = q - this.v[k];
+				out[q] = coeff * d * d + f[this.v[k]];
+			}
+		}
+
+		private static double intersection(double[] f, int q, int p, double coeff)
+		{
+			return ((f[q] + coeff * q * q) - (f[p] + coeff * p * p)) / (2 * coeff * (q - p));
+		}
+	}
+
+	// ------------------------------------------------------------------
+	// Rolling ball
+	// ------------------------------------------------------------------
+
+	private boolean rollingBall(FloatProcessor fp)
+	{
+		int shrinkFactor;
+		int arcTrimPer;
+		if(this.radius <= 10)
+		{
+			shrinkFactor = 1;
+			arcTrimPer = 24;
+		}
+		else if(this.radius <= 30)
+		{
+			shrinkFactor = 2;
+			arcTrimPer = 24;
+		}
+		else if(this.radius <= 100)
+		{
+			shrinkFactor = 4;
+			arcTrimPer = 32;
+		}
+		else
+		{
+			shrinkFactor = 8;
+			arcTrimPer = 40;
+		}
+		Ball ball = new Ball(this.radius / shrinkFactor, arcTrimPer);
+
+		int width = fp.getWidth();
+		int height = fp.getHeight();
+		float[] pixels = (float[]) fp.getPixels();
+		int sw = (width + shrinkFactor - 1) / shrinkFactor;
+		int sh = (height + shrinkFactor - 1) / shrinkFactor;
+		float[] small = shrink(pixels, width, height, shrinkFactor, sw, sh);
+		float[] eroded = new float[small.length];
+		if(!ball.apply(small, eroded, sw, sh, true) || !ball.apply(eroded, small, sw, sh, false))
+		{
+			return false;
+		}
+		if(shrinkFactor == 1)
+		{
+			System.arraycopy(small, 0, pixels, 0, pixels.length);
+		}
+		else
+		{
+			enlarge(small, sw, sh, pixels, width, height, shrinkFactor);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the image shrunk by taking the minimum of factor x factor blocks
+	 */
+	private static float[] shrink(float[] pixels, int width, int height, int factor, int sw, int sh)
+	{
+		float[] ret = new float[sw * sh];
+		Arrays.fill(ret, Float.MAX_VALUE);
+		for (int y = 0; y < height; y++)
+		{
+			int row = (y / factor) * sw;
+			for (int x = 0; x < width; x++)
+			{
+				float v = pixels[y * width + x];
+				int i = row + x / factor;
+				if(v < ret[i])
+				{
+					ret[i] = v;
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Bilinear interpolation of the shrunk image between block centers.
+	 */
+	private static void enlarge(float[] small, int sw, int sh, float[] pixels, int width, int height, int factor)
+	{
+		int[] x0 = new int[width];
+		float[] wx = new float[width];
+		for (int x = 0; x < width; x++)
+		{
+			double c = Math.min(Math.max((x + 0.5) / factor - 0.5, 0), sw - 1);
+			x0[x] = Math.min((int) c, Math.max(0, sw - 2));
+			wx[x] = sw < 2 ? 0 : (float) (c - x0[x]);
+		}
+		for (int y = 0; y < height; y++)
+		{
+			double c = Math.min(Math.max((y + 0.5) / factor - 0.5, 0), sh - 1);
+			int y0 = Math.min((int) c, Math.max(0, sh - 2));
+			float wy = sh < 2 ? 0 : (float) (c - y0);
+			int y1 = Math.min(y0 + 1, sh - 1);
+			for (int x = 0; x < width; x++)
+			{
+				int x1 = Math.min(x0[x] + 1, sw - 1);
+				float a = small[y0 * sw + x0[x]] + wx[x] * (small[y0 * sw + x1] - small[y0 * sw + x0[x]]);
+				float b = small[y1 * sw + x0[x]] + wx[x] * (small[y1 * sw + x1] - small[y1 * sw + x0[x]]);
+				pixels[y * width + x] = a + wy * (b - a);
+			}
+		}
+	}
+
+	/**
+	 * Trimmed ball used as the structuring element of the rolling ball, as in
+	 * ImageJ's RollingBall.
+	 */
+	private static class Ball {
+
+		final int halfWidth;
+		final int[] dx, dy;
+		final float[] z;
+
+		Ball(double ballRadius, int arcTrimPer)
+		{
+			double r = Math.max(1, ballRadius);
+			double rsquare = r * r;
+			int xtrim = (int) (arcTrimPer * r) / 100;
+			this.halfWidth = (int) Math.round(r - xtrim);
+			List<int[]> offsets = new Vector<int[]>();
+			List<Float> heights = new Vector<Float>();
+			for (int y = -this.halfWidth; y <= this.halfWidth; y++)
+			{
+				for (int x = -this.halfWidth; x <= this.halfWidth; x++)
+				{
+					double temp = rsquare - x * x - y * y;
+					if(temp > 0)
+					{
+						offsets.add(new int[] { x, y });
+						heights.add((float) Math.sqrt(temp));
+					}
+				}
+			}
+			this.dx = new int[offsets.size()];
+			this.dy = new int[offsets.size()];
+			this.z = new float[offsets.size()];
+			for (int i = 0; i < this.z.length; i++)
+			{
+				this.dx[i] = offsets.get(i)[0];
+				this.dy[i] = offsets.get(i)[1];
+				this.z[i] = heights.get(i);
+			}
+		}
+
+		/**
+		 * Erosion (out = min of in - z) or dilation (out = max of in + z) of
+		 * the image by the ball, in parallel row bands.
+		 */
+		boolean apply(final float[] in, final float[] out, final int width, final int height, final boolean erode)
+		{
+			int[] bounds = ParallelUtility.getBands(height, 8);
+			List<Callable<Boolean>> tasks = new Vector<Callable<Boolean>>();
+			for (int b = 0; b < bounds.length - 1; b++)
+			{
+				final int first = bounds[b];
+				final int last = bounds[b + 1];
+				tasks.add(new Callable<Boolean>() {
+
+					@Override
+					public Boolean call()
+					{
+						for (int y = first; y < last; y++)
+						{
+							for (int x = 0; x < width; x++)
+							{
+								float ret = erode ? Float.MAX_VALUE : -Float.MAX_VALUE;
+								for (int i = 0; i < z.length; i++)
+								{
+									int xx = x + dx[i];
+									int yy = y + dy[i];
+									if(xx < 0 || xx >= width || yy < 0 || yy >= height)
+									{
+										continue;
+									}
+									if(erode)
+									{
+										float v = in[yy * width + xx] - z[i];
+										if(v < ret)
+										{
+											ret = v;
+										}
+									}
+									else
+									{
+										float v = in[yy * width + xx] + z[i];
+										if(v > ret)
+										{
+											ret = v;
+										}
+									}
+								}
+								out[y * width + x] = ret;
+							}
+						}
+						return true;
+					}
+				});
+			}
+			return ParallelUtility.invokeAll(tasks);
+		}
+	}
+}
@@ -0,0 +1,609 @@
+package plugins.calculatorHelpers;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatBlitter;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import plugins.parallelHelpers.ParallelUtility;
+
+/**
+ * Pixel-wise arithmetic expression over images A, B, C, ... such as
+ *
+ * <pre>
+ * (A - 0.5*B) / max(C, 1)
+ * </pre>
+ *
+ * compiled once into a postfix program that is evaluated on blocks of pixels
+ * (each instruction is a tight loop over a block of floats) read straight
+ * from the byte, short or float pixel arrays of the inputs, with the result
+ * converted to the output type in the same pass. Large images are split
+ * across cores.
+ *
+ * Supported: numbers, the image letters, + - * / ^ (power), unary minus,
+ * parentheses and the functions min(a, b), max(a, b), pow(a, b), abs(a),
+ * sqrt(a), exp(a) and log(a). Division by zero gives
+ * FloatBlitter.divideByZeroValue like the image calculators.
+ *
+ */
+public class ImageExpression {
+
+	private static final int LOAD = 0, CONST = 1, ADD = 2, SUB = 3, MUL = 4, DIV = 5, POW = 6, MIN = 7, MAX = 8, NEG = 9, ABS = 10, SQRT = 11, EXP = 12, LOG = 13;
+
+	private static final int BLOCK = 1024;
+
+	/**
+	 * Images with more pixels than this are split across cores.
+	 */
+	private static final int PARALLEL_PIXELS = 1 << 20;
+
+	private final String expression;
+	private final List<Integer> codes = new ArrayList<Integer>();
+	private final List<Float> operands = new ArrayList<Float>();
+	private final boolean[] used;
+	private int depth = 0, maxDepth = 0;
+
+	// compiled program
+	private final int[] program;
+	private final float[] arguments;
+
+	// parser state
+	private int pos = 0;
+
+	/**
+	 * @throws IllegalArgumentException if the expression can't be parsed
+	 */
+	public ImageExpression(String expression)
+	{
+		this(expression, 26);
+	}
+
+	/**
+	 * @param maxImages the number of images available (letters from A), e.g.
+	 *            4 for A-D
+	 * @throws IllegalArgumentException if the expression can't be parsed or
+	 *             uses a letter beyond the available images
+	 */
+	public ImageExpression(String expression, int maxImages)
+	{
+		this.expression = expression;
+		this.used = new boolean[Math.max(0, Math.min(26, maxImages))];
+		this.parseSum();
+		this.skipSpaces();
+		if(this.pos < this.expression.length())
+		{
+			throw this.error("Unexpected '" + this.expression.charAt(this.pos) + "'");
+		}
+		this.program = new int[this.codes.size()];
+		this.arguments = new float[this.codes.size()];
+		for (int i = 0; i < this.program.length; i++)
+		{
+			this.program[i] = this.codes.get(i);
+			this.arguments[i] = this.operands.get(i);
+		}
+	}
+
+	/**
+	 * @return whether the expression uses image i (0 = A, 1 = B, ...)
+	 */
+	public boolean usesImage(int i)
+	{
+		return i >= 0 && i < this.used.length && this.used[i];
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.expression;
+	}
+
+	// ----------------------------------------------------
+	// --------- PARSING ----------------------------------
+	// ----------------------------------------------------
+
+	private void parseSum()
+	{
+		this.parseProduct();
+		while (true)
+		{
+			char c = this.peek();
+			if(c == '+' || c == '-')
+			{
+				this.pos++;
+				this.parseProduct();
+				this.emit(c == '+' ? ADD : SUB, 0);
+			}
+			else
+			{
+				return;
+			}
+		}
+	}
+
+	private void parseProduct()
+	{
+		this.parseUnary();
+		while (true)
+		{
+			char c = this.peek();
+			if(c == '*' || c == '/')
+			{
+				this.pos++;
+				this.parseUnary();
+				this.emit(c == '*' ? MUL : DIV, 0);
+			}
+			else
+			{
+				return;
+			}
+		}
+	}
+
+	private void parseUnary()
+	{
+		if(this.peek() == '-')
+		{
+			this.pos++;
+			this.parseUnary();
+			this.emit(NEG, 0);
+		}
+		else if(this.peek() == '+')
+		{
+			this.pos++;
+			this.parseUnary();
+		}
+		else
+		{
+			this.parsePower();
+		}
+	}
+
+	private void parsePower()
+	{
+		this.parsePrimary();
+		if(this.peek() == '^')
+		{
+			this.pos++;
+			// right associative, binds tighter than unary minus on the left
+			this.parseUnary();
+			this.emit(POW, 0);
+		}
+	}
+
+	private void parsePrimary()
+	{
+		char c = this.peek();
+		if(c == '(')
+		{
+			this.pos++;
+			this.parseSum();
+			this.expect(')');
+		}
+		else if(Character.isDigit(c) || c == '.')
+		{
+			int start = this.pos;
+			while (this.pos < this.expression.length() && (Character.isDigit(this.expression.charAt(this.pos)) || this.expression.charAt(this.pos) == '.'))
+			{
+				this.pos++;
+			}
+			// exponent (e.g., 1e-3)
+			if(this.pos < this.expression.length() && (this.expression.charAt(this.pos) == 'e' || this.expression.charAt(this.pos) == 'E'))
+			{
+				this.pos++;
+				if(this.pos < this.expression.length() && (this.expression.charAt(this.pos) == '-' || this.expression.charAt(this.pos) == '+'))
+				{
+					this.pos++;
+				}
+				while (this.pos < this.expression.length() && Character.isDigit(this.expression.charAt(this.pos)))
+				{
+					this.pos++;
+				}
+			}
+			try
+			{
+				this.emit(CONST, Float.parseFloat(this.expression.substring(start, this.pos)));
+			}
+			catch (NumberFormatException e)
+			{
+				throw this.error("Bad number '" + this.expression.substring(start, this.pos) + "'");
+			}
+		}
+		else if(Character.isLetter(c))
+		{
+			int start = this.pos;
+			while (this.pos < this.expression.length() && Character.isLetter(this.expression.charAt(this.pos)))
+			{
+				this.pos++;
+			}
+			String name = this.expression.substring(start, this.pos);
+			if(name.length() == 1 && name.charAt(0) >= 'A' && name.charAt(0) <= 'Z')
+			{
+				if(name.charAt(0) - 'A' >= this.used.length)
+				{
+					this.pos = start;
+					throw this.error("Image " + name + " isn't available (" + (this.used.length == 1 ? "A" : "A-" + (char) ('A' + this.used.length - 1)) + ")");
+				}
+				this.used[name.charAt(0) - 'A'] = true;
+				this.emit(LOAD, name.charAt(0) - 'A');
+			}
+			else
+			{
+				this.parseFunction(name);
+			}
+		}
+		else
+		{
+			throw this.error(c == 0 ? "Unexpected end" : "Unexpected '" + c + "'");
+		}
+	}
+
+	private void parseFunction(String name)
+	{
+		int code, args;
+		if(name.equals("min"))
+		{
+			code = MIN;
+			args = 2;
+		}
+		else if(name.equals("max"))
+		{
+			code = MAX;
+			args = 2;
+		}
+		else if(name.equals("pow"))
+		{
+			code = POW;
+			args = 2;
+		}
+		else if(name.equals("abs"))
+		{
+			code = ABS;
+			args = 1;
+		}
+		else if(name.equals("sqrt"))
+		{
+			code = SQRT;
+			args = 1;
+		}
+		else if(name.equals("exp"))
+		{
+			code = EXP;
+			args = 1;
+		}
+		else if(name.equals("log"))
+		{
+			code = LOG;
+			args = 1;
+		}
+		else
+		{
+			throw this.error("Unknown function or image '" + name + "'");
+		}
+		this.expect('(');
+		for (int i = 0; i < args; i++)
+		{
+			if(i > 0)
+			{
+				this.expect(',');
+			}
+			this.parseSum();
+		}
+		this.expect(')');
+		this.emit(code, 0);
+	}
+
+	private char peek()
+	{
+		this.skipSpaces();
+		return this.pos < this.expression.length() ? this.expression.charAt(this.pos) : 0;
+	}
+
+	private void skipSpaces()
+	{
+		while (this.pos < this.expression.length() && Character.isWhitespace(this.expression.charAt(this.pos)))
+		{
+			this.pos++;
+		}
+	}
+
+	private void expect(char c)
+	{
+		if(this.peek() != c)
+		{
+			throw this.error("Expected '" + c + "'");
+		}
+		this.pos++;
+	}
+
+	private IllegalArgumentException error(String message)
+	{
+		return new IllegalArgumentException(message + " at position " + (this.pos + 1) + " of '" + this.expression + "'.");
+	}
+
+	private void emit(int code, float operand)
+	{
+		this.codes.add(code);
+		this.operands.add(operand);
+		if(code == LOAD || code == CONST)
+		{
+			this.depth++;
+			this.maxDepth = Math.max(this.maxDepth, this.depth);
+		}
+		else if(code < NEG)
+		{
+			this.depth--;
+		}
+	}
+
+	// ----------------------------------------------------
+	// --------- EVALUATION -------------------------------
+	// ----------------------------------------------------
+
+	/**
+	 * Evaluate the expression for every pixel.
+	 *
+	 * @param images the images by letter (null for letters not used; all the
+	 *            used images must have the same size)
+	 * @return the result converted to bitDepth (8 and 16 clip and round like
+	 *         convertToByte(false) and convertToShort(false)), or null if a
+	 *         part failed
+	 * @throws IllegalArgumentException if a used image is missing, of an
+	 *         unsupported type or of a different size
+	 */
+	public ImageProcessor evaluate(ImageProcessor[] images, int bitDepth)
+	{
+		int width = -1, height = -1;
+		final Object[] pixels = new Object[this.used.length];
+		for (int i = 0; i < this.used.length; i++)
+		{
+			if(!this.used[i])
+			{
+				continue;
+			}
+			ImageProcessor ip = i < images.length ? images[i] : null;
+			if(ip == null)
+			{
+				throw new IllegalArgumentException("Image " + (char) ('A' + i) + " is used in '" + this.expression + "' but not provided.");
+			}
+			if(!(ip instanceof ByteProcessor || ip instanceof ShortProcessor || ip instanceof FloatProcessor) || ip.getCalibrationTable() != null)
+			{
+				ip = ip.convertToFloat();
+			}
+			if(width >= 0 && (ip.getWidth() != width || ip.getHeight() != height))
+			{
+				throw new IllegalArgumentException("The images used in '" + this.expression + "' must have the same size.");
+			}
+			width = ip.getWidth();
+			height = ip.getHeight();
+			pixels[i] = ip.getPixels();
+		}
+		if(width < 0)
+		{
+			// constant expression, use the size of the first image given
+			for (ImageProcessor ip : images)
+			{
+				if(ip != null)
+				{
+					width = ip.getWidth();
+					height = ip.getHeight();
+					break;
+				}
+			}
+			if(width < 0)
+			{
+				throw new IllegalArgumentException("No image provided for '" + this.expression + "'.");
+			}
+		}
+
+		final ImageProcessor ret;
+		if(bitDepth == 8)
+		{
+			ret = new ByteProcessor(width, height);
+		}
+		else if(bitDepth == 16)
+		{
+			ret = new ShortProcessor(width, height);
+		}
+		else
+		{
+			ret = new FloatProcessor(width, height);
+		}
+		final Object out = ret.getPixels();
+		int n = width * height;
+		if(n <= PARALLEL_PIXELS)
+		{
+			this.evaluate(pixels, 0, n, out);
+		}
+		else
+		{
+			int[] bounds = ParallelUtility.getBands(n, PARALLEL_PIXELS / 4);
+			List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+			for (int i = 0; i < bounds.length - 1; i++)
+			{
+				final int from = bounds[i], to = bounds[i + 1];
+				tasks.add(new Callable<Boolean>() {
+
+					@Override
+					public Boolean call()
+					{
+						ImageExpression.this.evaluate(pixels, from, to, out);
+						return true;
+					}
+				});
+			}
+			if(!ParallelUtility.invokeAll(tasks))
+			{
+				return null;
+			}
+		}
+		ret.resetMinAndMax();
+		return ret;
+	}
+
+	/**
+	 * Evaluate pixels [from, to) into out (byte[], short[] or float[]).
+	 */
+	public void evaluate(Object[] pixels, int from, int to, Object out)
+	{
+		int[] codes = this.program;
+		float[] operands = this.arguments;
+		int count = codes.length;
+		float[][] stack = new float[Math.max(1, this.maxDepth)][BLOCK];
+		float divideByZeroValue = FloatBlitter.divideByZeroValue;
+		for (int start = from; start < to; start = start + BLOCK)
+		{
+			int length = Math.min(BLOCK, to - start);
+			int sp = 0;
+			for (int k = 0; k < count; k++)
+			{
+				int code = codes[k];
+				if(code == LOAD)
+				{
+					load(pixels[(int) operands[k]], start, length, stack[sp]);
+					sp++;
+					continue;
+				}
+				if(code == CONST)
+				{
+					float[] s = stack[sp];
+					float v = operands[k];
+					for (int i = 0; i < length; i++)
+					{
+						s[i] = v;
+					}
+					sp++;
+					continue;
+				}
+				if(code >= NEG)
+				{
+					float[] a = stack[sp - 1];
+					for (int i = 0; i < length; i++)
+					{
+						a[i] = unary(code, a[i]);
+					}
+					continue;
+				}
+				float[] a = stack[sp - 2], b = stack[sp - 1];
+				switch (code)
+				{
+					case ADD:
+						for (int i = 0; i < length; i++)
+						{
+							a[i] = a[i] + b[i];
+						}
+						break;
+					case SUB:
+						for (int i = 0; i < length; i++)
+						{
+							a[i] = a[i] - b[i];
+						}
+						break;
+					case MUL:
+						for (int i = 0; i < length; i++)
+						{
+							a[i] = a[i] * b[i];
+						}
+						break;
+					case DIV:
+						for (int i = 0; i < length; i++)
+						{
+							a[i] = b[i] == 0 ? divideByZeroValue : a[i] / b[i];
+						}
+						break;
+					case POW:
+						for (int i = 0; i < length; i++)
+						{
+							a[i] = (float) Math.pow(a[i], b[i]);
+						}
+						break;
+					case MIN:
+						for (int i = 0; i < length; i++)
+						{
+							a[i] = a[i] < b[i] ? a[i] : b[i];
+						}
+						break;
+					default:
+						for (int i = 0; i < length; i++)
+						{
+							a[i] = a[i] > b[i] ? a[i] : b[i];
+						}
+						break;
+				}
+				sp--;
+			}
+			store(stack[0], start, length, out);
+		}
+	}
+
+	private static float unary(int code, float v)
+	{
+		switch (code)
+		{
+			case NEG:
+				return -v;
+			case ABS:
+				return Math.abs(v);
+			case SQRT:
+				return (float) Math.sqrt(v);
+			case EXP:
+				return (float) Math.exp(v);
+			default:
+				return (float) Math.log(v);
+		}
+	}
+
+	private static void load(Object pixels, int start, int length, float[] s)
+	{
+		if(pixels instanceof byte[])
+		{
+			byte[] p = (byte[]) pixels;
+			for (int i = 0; i < length; i++)
+			{
+				s[i] = p[start + i] & 0xff;
+			}
+		}
+		else if(pixels instanceof short[])
+		{
+			short[] p = (short[]) pixels;
+			for (int i = 0; i < length; i++)
+			{
+				s[i] = p[start + i] & 0xffff;
+			}
+		}
+		else
+		{
+			System.arraycopy(pixels, start, s, 0, length);
+		}
+	}
+
+	private static void store(float[] s, int start, int length, Object out)
+	{
+		if(out instanceof byte[])
+		{
+			byte[] o = (byte[]) out;
+			for (int i = 0; i < length; i++)
+			{
+				float v = s[i];
+				o[start + i] = (byte) ((int) ((v < 0 ? 0 : (v > 255 ? 255 : v)) + 0.5));
+			}
+		}
+		else if(out instanceof short[])
+		{
+			short[] o = (short[]) out;
+			for (int i = 0; i < length; i++)
+			{
+				float v = s[i];
+				o[start + i] = (short) ((int) ((v < 0 ? 0 : (v > 65535 ? 65535 : v)) + 0.5));
+			}
+		}
+		else
+		{
+			System.arraycopy(s, 0, out, start, length);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package plugins.calibrationHelpers;
+
+import ij.process.FloatProcessor;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process-wide cache of prepared calibration images (e.g., dark field and
+ * normalized illumination field) shared by all entries and threads that use
+ * the same calibration files with the same parameters.
+ *
+ * Each calibration is prepared once (threads asking for a calibration that is
+ * being prepared wait for it) and is never modified afterward, so its pixels
+ * can be read concurrently. Use the get*Processor methods to obtain
+ * processors wrapping the shared pixels and only use them as the source of
+ * operations (e.g., as the source of a Blitter).
+ *
+ */
+public class CalibrationCache {
+
+	private static final int CACHED_CALIBRATIONS = 8;
+
+	private static final Map<String,FutureTask<Calibration>> cache = new LinkedHashMap<String,FutureTask<Calibration>>(CACHED_CALIBRATIONS, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,FutureTask<Calibration>> eldest)
+		{
+			return this.size() > CACHED_CALIBRATIONS;
+		}
+	};
+
+	/**
+	 * Read-only dark and illumination field pixels (either can be null).
+	 */
+	public static class Calibration {
+
+		public final int width, height;
+		private final float[] dark, illum;
+
+		public Calibration(FloatProcessor dark, FloatProcessor illum)
+		{
+			FloatProcessor any = dark != null ? dark : illum;
+			this.width = any == null ? 0 : any.getWidth();
+			this.height = any == null ? 0 : any.getHeight();
+			this.dark = dark == null ? null : (float[]) dark.getPixels();
+			this.illum = illum == null ? null : (float[]) illum.getPixels();
+		}
+
+		/**
+		 * @return a processor wrapping the shared dark field pixels (don't
+		 *         modify) or null
+		 */
+		public FloatProcessor getDarkProcessor()
+		{
+			return this.dark == null ? null : new FloatProcessor(this.width, this.height, this.dark, null);
+		}
+
+		/**
+		 * @return a processor wrapping the shared illumination field pixels
+		 *         (don't modify) or null
+		 */
+		public FloatProcessor getIllumProcessor()
+		{
+			return this.illum == null ? null : new FloatProcessor(this.width, this.height, this.illum, null);
+		}
+	}
+
+	/**
+	 * Build a key from the paths of the calibration files (including their
+	 * modification time so changed files are prepared again) and the
+	 * parameters used to prepare them.
+	 */
+	public static String getKey(String[] paths, Object... parameters)
+	{
+		StringBuilder ret = new StringBuilder();
+		for (String path : paths)
+		{
+			if(path == null)
+			{
+				ret.append("null|");
+			}
+			else
+			{
+				ret.append(path).append('@').append(new File(path).lastModified()).append('|');
+			}
+		}
+		for (Object parameter : parameters)
+		{
+			ret.append(parameter).append('|');
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * @return the calibration with this key, preparing it with loader if it
+	 *         isn't cached yet
+	 */
+	public static Calibration get(String key, Callable<Calibration> loader) throws Exception
+	{
+		FutureTask<Calibration> task;
+		boolean prepare = false;
+		synchronized(cache)
+		{
+			task = cache.get(key);
+			if(task == null)
+			{
+				task = new FutureTask<Calibration>(loader);
+				cache.put(key, task);
+				prepare = true;
+			}
+		}
+		if(prepare)
+		{
+			task.run();
+		}
+		try
+		{
+			return task.get();
+		}
+		catch (ExecutionException e)
+		{
+			// don't keep failures around
+			synchronized(cache)
+			{
+				if(cache.get(key) == task)
+				{
+					cache.remove(key);
+				}
+			}
+			if(e.getCause() instanceof Exception)
+			{
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	public static void clear()
+	{
+		synchronized(cache)
+		{
+			cache.clear();
+		}
+	}
+}
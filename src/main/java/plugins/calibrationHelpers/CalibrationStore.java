@@ -0,0 +1,122 @@
+package plugins.calibrationHelpers;
+
+import ij.process.FloatProcessor;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process-wide store of calibration images that have been computed, keyed by
+ * everything that determines them (see CalibrationCache.getKey).
+ *
+ * Each calibration is computed once (threads asking for a calibration that is
+ * being computed wait for it) and is never modified afterward, so every entry
+ * can save its own copy of the same pixels (JEX moves each saved file into
+ * the database with its entry, so files can't be shared). The key of each
+ * saved copy is remembered (see addPath) so a ticket can remove the keys it
+ * used once its entries are done, leaving the calibrations of other tickets.
+ *
+ */
+public class CalibrationStore {
+
+	private static final int STORED_CALIBRATIONS = 8;
+
+	private static final Map<String,FutureTask<FloatProcessor>> store = new LinkedHashMap<String,FutureTask<FloatProcessor>>(STORED_CALIBRATIONS, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,FutureTask<FloatProcessor>> eldest)
+		{
+			return this.size() > STORED_CALIBRATIONS;
+		}
+	};
+
+	// key of the calibration saved at each path
+	private static final Map<String,String> keys = new HashMap<String,String>();
+
+	/**
+	 * @param maker computes the calibration (or returns null if it can't)
+	 * @return the calibration with this key (shared, don't modify) or null
+	 */
+	public static FloatProcessor get(String key, Callable<FloatProcessor> maker) throws Exception
+	{
+		FutureTask<FloatProcessor> task;
+		boolean compute = false;
+		synchronized(store)
+		{
+			task = store.get(key);
+			if(task == null)
+			{
+				task = new FutureTask<FloatProcessor>(maker);
+				store.put(key, task);
+				compute = true;
+			}
+		}
+		if(compute)
+		{
+			task.run();
+		}
+		FloatProcessor ret;
+		try
+		{
+			ret = task.get();
+		}
+		catch (ExecutionException e)
+		{
+			// don't keep failures around
+			remove(key, task);
+			if(e.getCause() instanceof Exception)
+			{
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+		if(ret == null)
+		{
+			remove(key, task);
+		}
+		return ret;
+	}
+
+	/**
+	 * Remember that the calibration with this key was saved at path.
+	 */
+	public static void addPath(String path, String key)
+	{
+		synchronized(store)
+		{
+			keys.put(path, key);
+		}
+	}
+
+	/**
+	 * Forget path and remove the calibration saved there from the store.
+	 */
+	public static void removePath(String path)
+	{
+		synchronized(store)
+		{
+			String key = keys.remove(path);
+			if(key != null)
+			{
+				store.remove(key);
+			}
+		}
+	}
+
+	private static void remove(String key, FutureTask<FloatProcessor> task)
+	{
+		synchronized(store)
+		{
+			if(store.get(key) == task)
+			{
+				store.remove(key);
+			}
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package plugins.calibrationHelpers;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatBlitter;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+
+/**
+ * Pointwise steps of the calibrated background correction fused into single
+ * loops over the pixel arrays, using work buffers that are reused by each
+ * thread from image to image.
+ *
+ * Each step reproduces the float arithmetic of the ImageJ operations it
+ * replaces (convertToFloat, FloatBlitter SUBTRACT/DIVIDE and
+ * FloatProcessor.add) so the results are the same.
+ *
+ */
+public class FusedCalibration {
+
+	/**
+	 * Work buffer slots.
+	 */
+	public static final int IMAGE = 0, BACKGROUND = 1, OUTPUT = 2;
+
+	private static final ThreadLocal<float[][]> buffers = new ThreadLocal<float[][]>() {
+
+		@Override
+		protected float[][] initialValue()
+		{
+			return new float[3][];
+		}
+	};
+
+	/**
+	 * @return a float processor wrapping the work buffer of this thread in the
+	 *         given slot (its contents are left over from previous use)
+	 */
+	public static FloatProcessor getProcessor(int slot, int width, int height)
+	{
+		float[][] slots = buffers.get();
+		if(slots[slot] == null || slots[slot].length != width * height)
+		{
+			slots[slot] = new float[width * height];
+		}
+		return new FloatProcessor(width, height, slots[slot], null);
+	}
+
+	/**
+	 * Convert ip to float minus dark (if not null) in one pass.
+	 *
+	 * @return the result (in the IMAGE work buffer) or null if ip can't be
+	 *         converted directly (calibrated or color images, or a dark image
+	 *         of a different size)
+	 */
+	public static FloatProcessor toFloatMinusDark(ImageProcessor ip, FloatProcessor dark)
+	{
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		if(ip.getCalibrationTable() != null || (dark != null && (dark.getWidth() != width || dark.getHeight() != height)))
+		{
+			return null;
+		}
+		if(!(ip instanceof ByteProcessor) && !(ip instanceof ShortProcessor) && !(ip instanceof FloatProcessor))
+		{
+			return null;
+		}
+		FloatProcessor ret = getProcessor(IMAGE, width, height);
+		float[] out = (float[]) ret.getPixels();
+		float[] d = dark == null ? null : (float[]) dark.getPixels();
+		Object pixels = ip.getPixels();
+		int n = width * height;
+		if(pixels instanceof byte[])
+		{
+			byte[] p = (byte[]) pixels;
+			for (int i = 0; i < n; i++)
+			{
+				out[i] = d == null ? (p[i] & 0xff) : (p[i] & 0xff) - d[i];
+			}
+		}
+		else if(pixels instanceof short[])
+		{
+			short[] p = (short[]) pixels;
+			for (int i = 0; i < n; i++)
+			{
+				out[i] = d == null ? (p[i] & 0xffff) : (p[i] & 0xffff) - d[i];
+			}
+		}
+		else
+		{
+			float[] p = (float[]) pixels;
+			for (int i = 0; i < n; i++)
+			{
+				out[i] = d == null ? p[i] : p[i] - d[i];
+			}
+		}
+		ret.resetMinAndMax();
+		return ret;
+	}
+
+	/**
+	 * @return a copy of imp in the BACKGROUND work buffer
+	 */
+	public static FloatProcessor copyToBackground(FloatProcessor imp)
+	{
+		FloatProcessor ret = getProcessor(BACKGROUND, imp.getWidth(), imp.getHeight());
+		System.arraycopy(imp.getPixels(), 0, ret.getPixels(), 0, imp.getWidth() * imp.getHeight());
+		ret.resetMinAndMax();
+		return ret;
+	}
+
+	/**
+	 * imp = imp - background, in place.
+	 */
+	public static void subtract(FloatProcessor imp, FloatProcessor background)
+	{
+		subtract(imp, background, null);
+	}
+
+	/**
+	 * imp = imp - background, in place, adding each row of the result to peak
+	 * (if not null) while it is still in cache.
+	 */
+	public static void subtract(FloatProcessor imp, FloatProcessor background, HistogramPeakAccumulator peak)
+	{
+		float[] p = (float[]) imp.getPixels();
+		float[] b = (float[]) background.getPixels();
+		int width = imp.getWidth();
+		int height = imp.getHeight();
+		for (int y = 0; y < height; y++)
+		{
+			int end = (y + 1) * width;
+			for (int i = y * width; i < end; i++)
+			{
+				p[i] = p[i] - b[i];
+			}
+			if(peak != null)
+			{
+				peak.addRow(y, p, y * width);
+			}
+		}
+		imp.resetMinAndMax();
+	}
+
+	/**
+	 * Compute ((imp - offset) / illum) + nominal only within crop (the whole
+	 * image if null) and write it to the OUTPUT work buffer.
+	 *
+	 * @return the result or null if illum is not the size of imp
+	 */
+	public static FloatProcessor finish(FloatProcessor imp, double offset, FloatProcessor illum, double nominal, Rectangle crop)
+	{
+		return finish(imp, offset, null, illum, nominal, crop);
+	}
+
+	/**
+	 * Same as finish but subtracting the (local) offsets of a filled
+	 * HistogramPeakAccumulator.
+	 */
+	public static FloatProcessor finish(FloatProcessor imp, HistogramPeakAccumulator offsets, FloatProcessor illum, double nominal, Rectangle crop)
+	{
+		return finish(imp, 0, offsets, illum, nominal, crop);
+	}
+
+	private static FloatProcessor finish(FloatProcessor imp, double offset, HistogramPeakAccumulator offsets, FloatProcessor illum, double nominal, Rectangle crop)
+	{
+		int width = imp.getWidth();
+		if(illum != null && (illum.getWidth() != width || illum.getHeight() != imp.getHeight()))
+		{
+			return null;
+		}
+		Rectangle r = new Rectangle(0, 0, width, imp.getHeight());
+		if(crop != null)
+		{
+			r = r.intersection(crop);
+			if(r.isEmpty())
+			{
+				r = new Rectangle(0, 0, width, imp.getHeight());
+			}
+		}
+		FloatProcessor ret = getProcessor(OUTPUT, r.width, r.height);
+		float[] out = (float[]) ret.getPixels();
+		float[] p = (float[]) imp.getPixels();
+		float[] il = illum == null ? null : (float[]) illum.getPixels();
+		float[] offsetRow = offsets == null ? null : new float[width];
+		float divideByZeroValue = FloatBlitter.divideByZeroValue;
+		int k = 0;
+		for (int y = r.y; y < r.y + r.height; y++)
+		{
+			if(offsetRow != null)
+			{
+				offsets.getOffsetRow(y, offsetRow);
+			}
+			int i = y * width + r.x;
+			for (int x = 0; x < r.width; x++, i++, k++)
+			{
+				float v = offsetRow == null ? (float) (p[i] + (-1 * offset)) : p[i] - offsetRow[r.x + x];
+				if(il != null)
+				{
+					v = il[i] == 0 ? divideByZeroValue : v / il[i];
+				}
+				out[k] = (float) (v + nominal);
+			}
+		}
+		ret.resetMinAndMax();
+		return ret;
+	}
+}
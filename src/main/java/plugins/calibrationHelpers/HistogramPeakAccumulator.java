@@ -0,0 +1,149 @@
+package plugins.calibrationHelpers;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of the pixel values within [min, max] that is filled row by row
+ * while the image is being computed (so finding the peak doesn't need another
+ * pass over the image) and gives the center of the most populated bin as the
+ * residual background offset.
+ *
+ * Rows and columns can be sub-sampled with a stride, and the image can be
+ * split into tiles x tiles tiles each with their own histogram to get a
+ * local offset map (interpolated between tile centers) for uneven residual
+ * background. Tiles with too few samples use the offset of the whole image.
+ *
+ */
+public class HistogramPeakAccumulator {
+
+	private static final int MIN_TILE_SAMPLES = 100;
+
+	private final double min, max, binWidth;
+	private final int bins, stride, tiles, width, height;
+	private final int[][] counts;
+	private final int[] samples;
+	private float[] offsets = null;
+
+	/**
+	 * @param stride use every stride-th row and column (1 to use every pixel)
+	 * @param tiles number of tiles along each side (1 for a single offset)
+	 */
+	public HistogramPeakAccumulator(double min, double max, int width, int height, int stride, int tiles)
+	{
+		this.min = min;
+		this.max = max;
+		this.bins = (int) Math.max(16, Math.min(4096, Math.ceil(max - min)));
+		this.binWidth = (max - min) / this.bins;
+		this.width = width;
+		this.height = height;
+		this.stride = Math.max(1, stride);
+		this.tiles = Math.max(1, tiles);
+		this.counts = new int[this.tiles * this.tiles + 1][this.bins];
+		this.samples = new int[this.tiles * this.tiles + 1];
+	}
+
+	/**
+	 * @return whether row y is sampled
+	 */
+	public boolean isSampled(int y)
+	{
+		return y % this.stride == 0;
+	}
+
+	/**
+	 * Add the (sampled) pixels of row y, stored in pixels starting at offset.
+	 */
+	public void addRow(int y, float[] pixels, int offset)
+	{
+		if(!this.isSampled(y))
+		{
+			return;
+		}
+		int tileRow = Math.min(this.tiles - 1, y * this.tiles / this.height) * this.tiles;
+		int[] global = this.counts[this.tiles * this.tiles];
+		for (int x = 0; x < this.width; x = x + this.stride)
+		{
+			float v = pixels[offset + x];
+			if(!(v >= this.min && v <= this.max))
+			{
+				continue;
+			}
+			int bin = Math.min(this.bins - 1, (int) ((v - this.min) / this.binWidth));
+			global[bin]++;
+			this.samples[this.tiles * this.tiles]++;
+			if(this.tiles > 1)
+			{
+				int tile = tileRow + Math.min(this.tiles - 1, x * this.tiles / this.width);
+				this.counts[tile][bin]++;
+				this.samples[tile]++;
+			}
+		}
+		this.offsets = null;
+	}
+
+	/**
+	 * @return the center of the peak bin of the whole image (the lower end of
+	 *         the range if nothing was added)
+	 */
+	public double getPeak()
+	{
+		return this.getPeak(this.counts[this.tiles * this.tiles]);
+	}
+
+	private double getPeak(int[] histogram)
+	{
+		int peak = 0;
+		for (int i = 1; i < this.bins; i++)
+		{
+			if(histogram[i] > histogram[peak])
+			{
+				peak = i;
+			}
+		}
+		return this.min + (peak + 0.5) * this.binWidth;
+	}
+
+	/**
+	 * @return the offset of each tile (row by row)
+	 */
+	public float[] getTileOffsets()
+	{
+		if(this.offsets == null)
+		{
+			int n = this.tiles * this.tiles;
+			float global = (float) this.getPeak();
+			this.offsets = new float[n];
+			for (int t = 0; t < n; t++)
+			{
+				this.offsets[t] = this.tiles == 1 || this.samples[t] < MIN_TILE_SAMPLES ? global : (float) this.getPeak(this.counts[t]);
+			}
+		}
+		return this.offsets;
+	}
+
+	/**
+	 * Put the offset of each pixel of row y (interpolated between tile
+	 * centers) into row (length width).
+	 */
+	public void getOffsetRow(int y, float[] row)
+	{
+		float[] tileOffsets = this.getTileOffsets();
+		if(this.tiles == 1)
+		{
+			Arrays.fill(row, 0, this.width, tileOffsets[0]);
+			return;
+		}
+		double ty = Math.min(Math.max((y + 0.5) * this.tiles / this.height - 0.5, 0), this.tiles - 1);
+		int y0 = Math.min((int) ty, this.tiles - 2);
+		double wy = ty - y0;
+		for (int x = 0; x < this.width; x++)
+		{
+			double tx = Math.min(Math.max((x + 0.5) * this.tiles / this.width - 0.5, 0), this.tiles - 1);
+			int x0 = Math.min((int) tx, this.tiles - 2);
+			double wx = tx - x0;
+			double a = tileOffsets[y0 * this.tiles + x0] + wx * (tileOffsets[y0 * this.tiles + x0 + 1] - tileOffsets[y0 * this.tiles + x0]);
+			double b = tileOffsets[(y0 + 1) * this.tiles + x0] + wx * (tileOffsets[(y0 + 1) * this.tiles + x0 + 1] - tileOffsets[(y0 + 1) * this.tiles + x0]);
+			row[x] = (float) (a + wy * (b - a));
+		}
+	}
+}
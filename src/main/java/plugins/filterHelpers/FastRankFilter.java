@@ -0,0 +1,572 @@
+package plugins.filterHelpers;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+
+import plugins.parallelHelpers.ParallelUtility;
+
+/**
+ * Mean, min, max, median and variance filters computed in parallel row bands
+ * with the conversion to the output bit depth fused into the final pass.
+ *
+ * Kernels are either square (side 2r+1) or the approximately circular kernel
+ * of ImageJ's RankFilters (same line radii), and pixels outside the image are
+ * the nearest edge pixels as in RankFilters.
+ * <ul>
+ * <li>mean and variance use running sums: O(1) per pixel for square kernels,
+ * O(r) (one difference of prefix sums per kernel line) for circular ones</li>
+ * <li>min and max use van Herk/Gil-Werman: separable and O(1) per pixel for
+ * square kernels, O(r) (one 1D pass per kernel line) for circular ones</li>
+ * <li>median uses a sliding histogram (Huang), which needs integer pixel
+ * values within 0-65535 (e.g., 8- or 16-bit images converted to float)</li>
+ * </ul>
+ *
+ */
+public class FastRankFilter {
+
+	public static final int MEAN = 0, MIN = 1, MAX = 2, MEDIAN = 3, VARIANCE = 4;
+
+	/**
+	 * @return the filter type for a CTC_Filters method name or -1
+	 */
+	public static int getType(String method)
+	{
+		String[] names = new String[] { "mean", "min", "max", "median", "variance" };
+		for (int i = 0; i < names.length; i++)
+		{
+			if(names[i].equals(method))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return whether the filter can be applied to fp (medians need integer
+	 *         values within 0-65535)
+	 */
+	public static boolean isSupported(int type, FloatProcessor fp)
+	{
+		if(type < MEAN || type > VARIANCE)
+		{
+			return false;
+		}
+		return type != MEDIAN || getHistogramSize(fp) > 0;
+	}
+
+	/**
+	 * Kernel line radii like RankFilters.makeLineRadii: for kernel line i
+	 * (dy = i - kRadius), the line spans dx from radii[2*i] to radii[2*i+1].
+	 */
+	public static int[] makeLineRadii(double radius, boolean square)
+	{
+		if(square)
+		{
+			int kRadius = Math.max(0, (int) radius);
+			int[] ret = new int[2 * (2 * kRadius + 1)];
+			for (int i = 0; i < 2 * kRadius + 1; i++)
+			{
+				ret[2 * i] = -kRadius;
+				ret[2 * i + 1] = kRadius;
+			}
+			return ret;
+		}
+		if(radius >= 1.5 && radius < 1.75)
+		{
+			radius = 1.75;
+		}
+		else if(radius >= 2.5 && radius < 2.85)
+		{
+			radius = 2.85;
+		}
+		int r2 = (int) (radius * radius) + 1;
+		int kRadius = (int) (Math.sqrt(r2 + 1e-10));
+		int[] ret = new int[2 * (2 * kRadius + 1)];
+		ret[2 * kRadius] = -kRadius;
+		ret[2 * kRadius + 1] = kRadius;
+		for (int y = 1; y <= kRadius; y++)
+		{
+			int dx = (int) (Math.sqrt(r2 - y * y + 1e-10));
+			ret[2 * (kRadius - y)] = -dx;
+			ret[2 * (kRadius - y) + 1] = dx;
+			ret[2 * (kRadius + y)] = -dx;
+			ret[2 * (kRadius + y) + 1] = dx;
+		}
+		return ret;
+	}
+
+	/**
+	 * Filter fp (not modified) and convert the result to bitDepth (8 and 16
+	 * clip to the range of the type and round, like convertToByte(false) and
+	 * convertToShort(false)).
+	 *
+	 * @return the filtered image or null if a band failed
+	 */
+	public static ImageProcessor filter(final FloatProcessor fp, final int type, double radius, final boolean square, int bitDepth)
+	{
+		final int width = fp.getWidth();
+		final int height = fp.getHeight();
+		final int[] radii = makeLineRadii(radius, square);
+		final int kRadius = radii.length / 4;
+		final int bins = type == MEDIAN ? getHistogramSize(fp) : 0;
+		final ImageProcessor out;
+		if(bitDepth == 8)
+		{
+			out = new ByteProcessor(width, height);
+		}
+		else if(bitDepth == 16)
+		{
+			out = new ShortProcessor(width, height);
+		}
+		else
+		{
+			out = new FloatProcessor(width, height);
+		}
+
+		final int[] bounds = ParallelUtility.getBands(height, Math.max(16, 2 * kRadius));
+		List<Callable<Boolean>> tasks = new Vector<Callable<Boolean>>();
+		for (int i = 0; i < bounds.length - 1; i++)
+		{
+			final int y0 = bounds[i], y1 = bounds[i + 1];
+			tasks.add(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call()
+				{
+					Band band = new Band((float[]) fp.getPixels(), width, height, radii, out);
+					if(type == MEDIAN)
+					{
+						band.median(y0, y1, bins);
+					}
+					else if((type == MIN || type == MAX) && square)
+					{
+						band.minMaxSquare(y0, y1, type == MAX);
+					}
+					else if(type == MIN || type == MAX)
+					{
+						band.minMax(y0, y1, type == MAX);
+					}
+					else if(square)
+					{
+						band.sumsSquare(y0, y1, type == VARIANCE);
+					}
+					else
+					{
+						band.sums(y0, y1, type == VARIANCE);
+					}
+					return true;
+				}
+			});
+		}
+		if(!ParallelUtility.invokeAll(tasks))
+		{
+			return null;
+		}
+		out.resetMinAndMax();
+		return out;
+	}
+
+	/**
+	 * @return max + 1 if all the pixels are integers within 0-65535, else 0
+	 */
+	private static int getHistogramSize(FloatProcessor fp)
+	{
+		float[] pixels = (float[]) fp.getPixels();
+		float max = 0;
+		for (float v : pixels)
+		{
+			if(!(v >= 0 && v <= 65535) || v != (int) v)
+			{
+				return 0;
+			}
+			if(v > max)
+			{
+				max = v;
+			}
+		}
+		return (int) max + 1;
+	}
+
+	/**
+	 * Work of one band of rows, with the row buffers it needs.
+	 */
+	private static class Band {
+
+		final float[] src;
+		final int width, height, kRadius, kHeight, n;
+		final int[] radii;
+		final ImageProcessor out;
+		final float[] row;
+
+		/**
+		 * Source x (clamped) of each padded x, padded x = x + kRadius.
+		 */
+		final int[] xIndex;
+
+		Band(float[] src, int width, int height, int[] radii, ImageProcessor out)
+		{
+			this.src = src;
+			this.width = width;
+			this.height = height;
+			this.radii = radii;
+			this.kHeight = radii.length / 2;
+			this.kRadius = this.kHeight / 2;
+			this.out = out;
+			this.row = new float[width];
+			this.xIndex = new int[width + 2 * this.kRadius];
+			for (int x = 0; x < this.xIndex.length; x++)
+			{
+				this.xIndex[x] = Math.min(width - 1, Math.max(0, x - this.kRadius));
+			}
+			int count = 0;
+			for (int i = 0; i < this.kHeight; i++)
+			{
+				count = count + radii[2 * i + 1] - radii[2 * i] + 1;
+			}
+			this.n = count;
+		}
+
+		/**
+		 * @return the offset of source row y (clamped)
+		 */
+		int rowOffset(int y)
+		{
+			return Math.min(this.height - 1, Math.max(0, y)) * this.width;
+		}
+
+		/**
+		 * Running sums of the padded source row y with squares if requested:
+		 * sums[x] is the sum of padded pixels [0, x).
+		 */
+		void prefix(int y, double[] sums, double[] squares)
+		{
+			int offset = this.rowOffset(y);
+			double s = 0, s2 = 0;
+			sums[0] = 0;
+			if(squares != null)
+			{
+				squares[0] = 0;
+			}
+			for (int x = 0; x < this.xIndex.length; x++)
+			{
+				double v = this.src[offset + this.xIndex[x]];
+				s = s + v;
+				sums[x + 1] = s;
+				if(squares != null)
+				{
+					s2 = s2 + v * v;
+					squares[x + 1] = s2;
+				}
+			}
+		}
+
+		void sums(int y0, int y1, boolean variance)
+		{
+			int length = this.xIndex.length + 1;
+			double[][] sums = new double[this.kHeight][length];
+			double[][] squares = variance ? new double[this.kHeight][length] : null;
+			for (int y = y0; y < y1; y++)
+			{
+				// ring of the prefix sums of the kernel rows
+				for (int i = 0; i < this.kHeight; i++)
+				{
+					int sy = y - this.kRadius + i;
+					if(y == y0 || i == this.kHeight - 1)
+					{
+						this.prefix(sy, sums[mod(sy, this.kHeight)], variance ? squares[mod(sy, this.kHeight)] : null);
+					}
+				}
+				for (int x = 0; x < this.width; x++)
+				{
+					double s = 0, s2 = 0;
+					for (int i = 0; i < this.kHeight; i++)
+					{
+						int slot = mod(y - this.kRadius + i, this.kHeight);
+						int a = x + this.kRadius + this.radii[2 * i], b = x + this.kRadius + this.radii[2 * i + 1] + 1;
+						s = s + sums[slot][b] - sums[slot][a];
+						if(variance)
+						{
+							s2 = s2 + squares[slot][b] - squares[slot][a];
+						}
+					}
+					this.row[x] = (float) (variance ? (s2 - s * s / this.n) / this.n : s / this.n);
+				}
+				this.store(y);
+			}
+		}
+
+		void sumsSquare(int y0, int y1, boolean variance)
+		{
+			// horizontal box sums of each source row, summed vertically with a
+			// running sum over the kernel rows
+			int r = this.kRadius, k = 2 * r + 1;
+			double[] sums = new double[this.xIndex.length + 1];
+			double[] squares = variance ? new double[this.xIndex.length + 1] : null;
+			double[][] h = new double[k][this.width];
+			double[][] h2 = variance ? new double[k][this.width] : null;
+			double[] v = new double[this.width];
+			double[] v2 = variance ? new double[this.width] : null;
+			for (int sy = y0 - r; sy <= y1 + r - 1; sy++)
+			{
+				int slot = mod(sy, k);
+				if(sy - k >= y0 - r)
+				{
+					// drop the row leaving the kernel
+					for (int x = 0; x < this.width; x++)
+					{
+						v[x] = v[x] - h[slot][x];
+						if(variance)
+						{
+							v2[x] = v2[x] - h2[slot][x];
+						}
+					}
+				}
+				this.prefix(sy, sums, squares);
+				for (int x = 0; x < this.width; x++)
+				{
+					h[slot][x] = sums[x + k] - sums[x];
+					v[x] = v[x] + h[slot][x];
+					if(variance)
+					{
+						h2[slot][x] = squares[x + k] - squares[x];
+						v2[x] = v2[x] + h2[slot][x];
+					}
+				}
+				int y = sy - r;
+				if(y >= y0)
+				{
+					for (int x = 0; x < this.width; x++)
+					{
+						this.row[x] = (float) (variance ? (v2[x] - v[x] * v[x] / this.n) / this.n : v[x] / this.n);
+					}
+					this.store(y);
+				}
+			}
+		}
+
+		void minMax(int y0, int y1, boolean max)
+		{
+			int padded = this.xIndex.length;
+			float[] p = new float[padded];
+			float[] g = new float[padded];
+			float[] h = new float[padded];
+			float[] line = new float[this.width];
+			for (int y = y0; y < y1; y++)
+			{
+				for (int i = 0; i < this.kHeight; i++)
+				{
+					int offset = this.rowOffset(y - this.kRadius + i);
+					int dx = this.radii[2 * i + 1];
+					// window [x - dx, x + dx] = padded [x + kRadius - dx, ...]
+					int start = this.kRadius - dx;
+					int count = this.width + 2 * dx;
+					for (int j = 0; j < count; j++)
+					{
+						p[j] = this.src[offset + this.xIndex[start + j]];
+					}
+					vanHerk(p, count, 2 * dx + 1, g, h, i == 0 ? this.row : line, max);
+					if(i > 0)
+					{
+						combine(this.row, line, this.width, max);
+					}
+				}
+				this.store(y);
+			}
+		}
+
+		void minMaxSquare(int y0, int y1, boolean max)
+		{
+			int r = this.kRadius, k = 2 * r + 1;
+			int rows = y1 - y0 + 2 * r;
+			int length = Math.max(this.xIndex.length, rows);
+			float[] p = new float[length];
+			float[] g = new float[length];
+			float[] h = new float[length];
+
+			// horizontal pass over the band and its kernel margins
+			float[][] horizontal = new float[rows][this.width];
+			for (int j = 0; j < rows; j++)
+			{
+				int offset = this.rowOffset(y0 - r + j);
+				for (int x = 0; x < this.xIndex.length; x++)
+				{
+					p[x] = this.src[offset + this.xIndex[x]];
+				}
+				vanHerk(p, this.xIndex.length, k, g, h, horizontal[j], max);
+			}
+
+			// vertical pass, one column at a time
+			float[] column = new float[y1 - y0];
+			float[][] result = new float[y1 - y0][];
+			for (int j = 0; j < result.length; j++)
+			{
+				result[j] = new float[this.width];
+			}
+			for (int x = 0; x < this.width; x++)
+			{
+				for (int j = 0; j < rows; j++)
+				{
+					p[j] = horizontal[j][x];
+				}
+				vanHerk(p, rows, k, g, h, column, max);
+				for (int j = 0; j < column.length; j++)
+				{
+					result[j][x] = column[j];
+				}
+			}
+			for (int y = y0; y < y1; y++)
+			{
+				System.arraycopy(result[y - y0], 0, this.row, 0, this.width);
+				this.store(y);
+			}
+		}
+
+		void median(int y0, int y1, int bins)
+		{
+			int[] histogram = new int[bins];
+			int half = (this.n - 1) / 2;
+			int[] offsets = new int[this.kHeight];
+			for (int y = y0; y < y1; y++)
+			{
+				for (int i = 0; i < this.kHeight; i++)
+				{
+					offsets[i] = this.rowOffset(y - this.kRadius + i);
+				}
+
+				// window of the first pixel of the row
+				for (int i = 0; i < this.kHeight; i++)
+				{
+					for (int dx = this.radii[2 * i]; dx <= this.radii[2 * i + 1]; dx++)
+					{
+						histogram[(int) this.src[offsets[i] + this.xIndex[this.kRadius + dx]]]++;
+					}
+				}
+				int m = 0, below = 0;
+				while (below + histogram[m] <= half)
+				{
+					below = below + histogram[m];
+					m++;
+				}
+				this.row[0] = m;
+
+				// slide the window along the row
+				for (int x = 1; x < this.width; x++)
+				{
+					for (int i = 0; i < this.kHeight; i++)
+					{
+						int leaving = (int) this.src[offsets[i] + this.xIndex[x - 1 + this.kRadius + this.radii[2 * i]]];
+						int entering = (int) this.src[offsets[i] + this.xIndex[x + this.kRadius + this.radii[2 * i + 1]]];
+						histogram[leaving]--;
+						histogram[entering]++;
+						if(leaving < m)
+						{
+							below--;
+						}
+						if(entering < m)
+						{
+							below++;
+						}
+					}
+					while (below > half)
+					{
+						m--;
+						below = below - histogram[m];
+					}
+					while (below + histogram[m] <= half)
+					{
+						below = below + histogram[m];
+						m++;
+					}
+					this.row[x] = m;
+				}
+
+				// empty the histogram for the next row
+				for (int i = 0; i < this.kHeight; i++)
+				{
+					for (int dx = this.radii[2 * i]; dx <= this.radii[2 * i + 1]; dx++)
+					{
+						histogram[(int) this.src[offsets[i] + this.xIndex[this.width - 1 + this.kRadius + dx]]]--;
+					}
+				}
+				this.store(y);
+			}
+		}
+
+		/**
+		 * Convert the row to the output type and store it as row y.
+		 */
+		void store(int y)
+		{
+			int offset = y * this.width;
+			Object pixels = this.out.getPixels();
+			if(pixels instanceof byte[])
+			{
+				byte[] b = (byte[]) pixels;
+				for (int x = 0; x < this.width; x++)
+				{
+					float v = this.row[x];
+					b[offset + x] = (byte) ((int) ((v < 0 ? 0 : (v > 255 ? 255 : v)) + 0.5));
+				}
+			}
+			else if(pixels instanceof short[])
+			{
+				short[] s = (short[]) pixels;
+				for (int x = 0; x < this.width; x++)
+				{
+					float v = this.row[x];
+					s[offset + x] = (short) ((int) ((v < 0 ? 0 : (v > 65535 ? 65535 : v)) + 0.5));
+				}
+			}
+			else
+			{
+				System.arraycopy(this.row, 0, pixels, offset, this.width);
+			}
+		}
+	}
+
+	/**
+	 * van Herk/Gil-Werman running max (or min) of window k over p[0, count):
+	 * out[i] is the max of p[i, i + k) for i in [0, count - k + 1), using
+	 * about 3 comparisons per value whatever k.
+	 */
+	static void vanHerk(float[] p, int count, int k, float[] g, float[] h, float[] out, boolean max)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			g[i] = i % k == 0 ? p[i] : pick(g[i - 1], p[i], max);
+		}
+		for (int i = count - 1; i >= 0; i--)
+		{
+			h[i] = (i + 1) % k == 0 || i == count - 1 ? p[i] : pick(h[i + 1], p[i], max);
+		}
+		for (int i = 0; i + k <= count; i++)
+		{
+			out[i] = pick(h[i], g[i + k - 1], max);
+		}
+	}
+
+	private static int mod(int a, int k)
+	{
+		return ((a % k) + k) % k;
+	}
+
+	private static float pick(float a, float b, boolean max)
+	{
+		return max ? (a > b ? a : b) : (a < b ? a : b);
+	}
+
+	private static void combine(float[] row, float[] line, int width, boolean max)
+	{
+		for (int x = 0; x < width; x++)
+		{
+			row[x] = pick(row[x], line[x], max);
+		}
+	}
+}
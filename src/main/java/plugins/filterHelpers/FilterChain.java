@@ -0,0 +1,218 @@
+package plugins.filterHelpers;
+
+import ij.ImagePlus;
+import ij.plugin.filter.RankFilters;
+import ij.process.FloatBlitter;
+import ij.process.FloatProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jex.utilities.FunctionUtility;
+import plugins.CTC_ImageCalculator;
+
+/**
+ * Ordered list of filter, adjust and arithmetic operations applied to a float
+ * image in memory, parsed from text such as
+ *
+ * <pre>
+ * median(2); adjust(0, 4095, 0, 65535, 1); calc(A-B); mean(5)
+ * </pre>
+ *
+ * Operations:
+ * <ul>
+ * <li>mean(r), min(r), max(r), median(r), variance(r): rank filters as in
+ * CTC_Filters</li>
+ * <li>adjust(oldMin, oldMax, newMin, newMax, gamma): as in CTC_AdjustImage</li>
+ * <li>calc(operation): image (A) combined with the second image (B) using a
+ * CTC_ImageCalculator operation (e.g., A-B, A/B, MAX)</li>
+ * <li>add(v), multiply(v): constant arithmetic</li>
+ * </ul>
+ *
+ */
+public class FilterChain {
+
+	public static final String ENGINE_IMAGEJ = "ImageJ RankFilters", ENGINE_CIRCULAR = "Fast (circular)", ENGINE_SQUARE = "Fast (square)";
+
+	/**
+	 * One operation of the chain.
+	 */
+	public static class Step {
+
+		public final String name;
+		public final String[] args;
+
+		Step(String name, String[] args)
+		{
+			this.name = name;
+			this.args = args;
+		}
+
+		double getArg(int i)
+		{
+			return Double.parseDouble(this.args[i]);
+		}
+
+		public boolean needsImageB()
+		{
+			return this.name.equals("calc");
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder ret = new StringBuilder(this.name).append('(');
+			for (int i = 0; i < this.args.length; i++)
+			{
+				ret.append(i == 0 ? "" : ", ").append(this.args[i]);
+			}
+			return ret.append(')').toString();
+		}
+	}
+
+	private final List<Step> steps = new ArrayList<Step>();
+	private final String engine;
+
+	/**
+	 * @param engine filter engine for the rank filters (see ENGINE_*)
+	 * @throws IllegalArgumentException if an operation is unknown or has the
+	 *         wrong arguments
+	 */
+	public FilterChain(String operations, String engine)
+	{
+		this.engine = engine;
+		for (String op : operations.split(";"))
+		{
+			op = op.trim();
+			if(op.isEmpty())
+			{
+				continue;
+			}
+			int open = op.indexOf('(');
+			if(open < 0 || !op.endsWith(")"))
+			{
+				throw new IllegalArgumentException("Couldn't parse operation '" + op + "', expected name(arguments).");
+			}
+			String name = op.substring(0, open).trim();
+			String inside = op.substring(open + 1, op.length() - 1).trim();
+			String[] args = inside.isEmpty() ? new String[0] : inside.split(",");
+			for (int i = 0; i < args.length; i++)
+			{
+				args[i] = args[i].trim();
+			}
+			Step step = new Step(name, args);
+			this.check(step);
+			this.steps.add(step);
+		}
+	}
+
+	private void check(Step step)
+	{
+		int count;
+		if(FastRankFilter.getType(step.name) >= 0 || step.name.equals("add") || step.name.equals("multiply"))
+		{
+			count = 1;
+		}
+		else if(step.name.equals("adjust"))
+		{
+			count = 5;
+		}
+		else if(step.name.equals("calc"))
+		{
+			if(step.args.length != 1 || CTC_ImageCalculator.getBlitterMethod(step.args[0]) < 0)
+			{
+				throw new IllegalArgumentException("Unknown image calculator operation in " + step + ".");
+			}
+			return;
+		}
+		else
+		{
+			throw new IllegalArgumentException("Unknown operation " + step + ".");
+		}
+		if(step.args.length != count)
+		{
+			throw new IllegalArgumentException(step + " needs " + count + " argument(s).");
+		}
+		for (int i = 0; i < count; i++)
+		{
+			try
+			{
+				step.getArg(i);
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Argument '" + step.args[i] + "' of " + step + " is not a number.");
+			}
+		}
+	}
+
+	public List<Step> getSteps()
+	{
+		return this.steps;
+	}
+
+	/**
+	 * @return whether any operation uses the second image
+	 */
+	public boolean needsImageB()
+	{
+		for (Step step : this.steps)
+		{
+			if(step.needsImageB())
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Apply a step to ip (float). imageB is only read.
+	 *
+	 * @return the result, ip itself for operations done in place
+	 */
+	public FloatProcessor apply(Step step, FloatProcessor ip, FloatProcessor imageB)
+	{
+		int type = FastRankFilter.getType(step.name);
+		if(type >= 0)
+		{
+			double radius = step.getArg(0);
+			if(!this.engine.equals(ENGINE_IMAGEJ) && FastRankFilter.isSupported(type, ip))
+			{
+				FloatProcessor ret = (FloatProcessor) FastRankFilter.filter(ip, type, radius, this.engine.equals(ENGINE_SQUARE), 32);
+				if(ret != null)
+				{
+					return ret;
+				}
+			}
+			ImagePlus im = new ImagePlus("temp", ip);
+			RankFilters rF = new RankFilters();
+			rF.setup(step.name, im);
+			rF.makeKernel(radius);
+			rF.run(ip);
+			return ip;
+		}
+		if(step.name.equals("adjust"))
+		{
+			FunctionUtility.imAdjust(ip, step.getArg(0), step.getArg(1), step.getArg(2), step.getArg(3), step.getArg(4));
+		}
+		else if(step.name.equals("calc"))
+		{
+			if(imageB == null)
+			{
+				throw new IllegalArgumentException(step + " needs a second image.");
+			}
+			FloatBlitter blit = new FloatBlitter(ip);
+			blit.copyBits(imageB, 0, 0, CTC_ImageCalculator.getBlitterMethod(step.args[0]));
+		}
+		else if(step.name.equals("add"))
+		{
+			ip.add(step.getArg(0));
+		}
+		else if(step.name.equals("multiply"))
+		{
+			ip.multiply(step.getArg(0));
+		}
+		return ip;
+	}
+}
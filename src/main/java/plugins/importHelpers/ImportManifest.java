@@ -0,0 +1,541 @@
+package plugins.importHelpers;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.Vector;
+
+import logs.Logs;
+import tables.Dim;
+import tables.DimTable;
+import tables.DimensionMap;
+import Database.SingleUserDatabase.JEXWriter;
+
+/**
+ * Record of the files imported by a previous run of the importer so that
+ * files that haven't changed don't have to be decoded again.
+ *
+ * Each source file is keyed by its path and remembered with its size,
+ * modification time and MD5 content hash, the import settings that shaped its
+ * planes (see getUnchanged), the DimTable that was read from it and its
+ * planes. A record is only reused if the file and settings still match all of
+ * these and every plane it points to still exists.
+ *
+ * JEX moves the planes of an import into the database, so the manifest keeps
+ * its own copy of each plane (a hard link when the file system allows it) in
+ * the folder manifestName.planes next to the manifest, and reused planes are
+ * copied from there to new temp files for each import.
+ *
+ * The manifest is a tab-delimited text file with one FILE line per source
+ * file followed by its DIM and PLANE lines. Every name, value and path is a
+ * field of its own (with tabs, line breaks and backslashes escaped), so
+ * channel names read from metadata can hold any character, including the ','
+ * and '=' of DimensionMap strings. Loading, reusing planes and saving
+ * are serialized per manifest file, and saving merges the records added by
+ * other imports saved in the meantime, so entries importing at the same time
+ * can share a manifest.
+ *
+ */
+public class ImportManifest {
+
+	private static final String HEADER = "# CTC import manifest v3";
+	private static final String FILE = "FILE", DIM = "DIM", PLANE = "PLANE";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// one lock per manifest file (by canonical path)
+	private static final Map<String,Object> locks = new HashMap<String,Object>();
+
+	private final File manifestFile;
+	private final Object lock;
+	private final TreeMap<String,Record> records = new TreeMap<String,Record>();
+	private final TreeMap<String,Record> added = new TreeMap<String,Record>();
+
+	public static class Record {
+
+		public final String path;
+		public final long size;
+		public final long lastModified;
+		public final String hash;
+		public final String settings;
+		public final DimTable table;
+		public final TreeMap<DimensionMap,String> planes;
+
+		Record(String path, long size, long lastModified, String hash, String settings, DimTable table, TreeMap<DimensionMap,String> planes)
+		{
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.settings = settings;
+			this.table = table;
+			this.planes = planes;
+		}
+	}
+
+	private ImportManifest(File manifestFile)
+	{
+		this.manifestFile = manifestFile;
+		this.lock = getLock(manifestFile);
+	}
+
+	/**
+	 * Read the manifest from disk. A missing or unreadable manifest results in
+	 * an empty one (i.e., everything is imported again).
+	 */
+	public static ImportManifest load(File manifestFile)
+	{
+		ImportManifest ret = new ImportManifest(manifestFile);
+		synchronized(ret.lock)
+		{
+			read(manifestFile, ret.records);
+		}
+		return ret;
+	}
+
+	private static void read(File manifestFile, TreeMap<String,Record> records)
+	{
+		if(!manifestFile.exists())
+		{
+			return;
+		}
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), UTF8));
+			Record current = null;
+			String line = reader.readLine();
+			if(line == null || !line.equals(HEADER))
+			{
+				// older manifests don't record the import settings or escape their fields
+				return;
+			}
+			while ((line = reader.readLine()) != null)
+			{
+				if(line.length() == 0 || line.startsWith("#"))
+				{
+					continue;
+				}
+				String[] fields = line.split("\t", -1);
+				for (int i = 0; i < fields.length; i++)
+				{
+					fields[i] = unescape(fields[i]);
+				}
+				if(fields[0].equals(FILE))
+				{
+					current = new Record(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4], fields[5], new DimTable(), new TreeMap<DimensionMap,String>());
+					records.put(current.path, current);
+				}
+				else if(fields[0].equals(DIM) && current != null)
+				{
+					List<String> values = new Vector<String>();
+					for (int i = 2; i < fields.length; i++)
+					{
+						values.add(fields[i]);
+					}
+					current.table.add(new Dim(fields[1], values));
+				}
+				else if(fields[0].equals(PLANE) && current != null)
+				{
+					// path then the name and value of each dimension
+					DimensionMap map = new DimensionMap();
+					for (int i = 2; i + 1 < fields.length; i = i + 2)
+					{
+						map.put(fields[i], fields[i + 1]);
+					}
+					current.planes.put(map, fields[1]);
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			Logs.log("Couldn't read import manifest " + manifestFile.getAbsolutePath() + ". Importing all files again.", Logs.ERROR, ImportManifest.class);
+			e.printStackTrace();
+			records.clear();
+		}
+		finally
+		{
+			close(reader);
+		}
+	}
+
+	/**
+	 * @param settings the import settings that shape the planes (e.g., plane
+	 *            writer, montage rows and cols, file name separator, channel
+	 *            names), as a single line of text
+	 * @return the record of a previous import of f with the same settings or
+	 *         null if f is new, has changed, was imported with other settings,
+	 *         or its kept planes no longer exist
+	 */
+	public Record getUnchanged(File f, String settings)
+	{
+		Record r = this.records.get(f.getAbsolutePath());
+		if(r == null || !r.settings.equals(settings) || r.size != f.length() || r.lastModified != f.lastModified() || r.planes.size() == 0)
+		{
+			return null;
+		}
+		for (String planePath : r.planes.values())
+		{
+			if(!new File(planePath).exists())
+			{
+				return null;
+			}
+		}
+		try
+		{
+			if(!r.hash.equals(hash(f)))
+			{
+				return null;
+			}
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		return r;
+	}
+
+	/**
+	 * Copy the kept planes of a record to new temp files of the database for
+	 * this import.
+	 *
+	 * @return the new plane paths or null if a kept plane couldn't be copied
+	 *         (i.e., import the file again)
+	 */
+	public TreeMap<DimensionMap,String> copyPlanes(Record r)
+	{
+		TreeMap<DimensionMap,String> ret = new TreeMap<DimensionMap,String>();
+		synchronized(this.lock)
+		{
+			for (DimensionMap map : r.planes.keySet())
+			{
+				String kept = r.planes.get(map);
+				String path = JEXWriter.getDatabaseFolder() + File.separator + JEXWriter.getUniqueRelativeTempPath(getExtension(kept));
+				try
+				{
+					linkOrCopy(new File(kept), new File(path));
+				}
+				catch (IOException e)
+				{
+					Logs.log("Couldn't copy the plane " + kept + " kept by the import manifest.", Logs.ERROR, ImportManifest.class);
+					e.printStackTrace();
+					return null;
+				}
+				ret.put(map.copy(), path);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Remember the import of f, keeping a copy of each of its planes (before
+	 * JEX moves them into the database).
+	 */
+	public void put(File f, String settings, DimTable table, TreeMap<DimensionMap,String> planes) throws IOException
+	{
+		DimTable tableCopy = new DimTable();
+		for (Dim d : table)
+		{
+			tableCopy.add(d.copy());
+		}
+		String hash = hash(f);
+		File folder = this.getPlaneFolder();
+		if(!folder.exists() && !folder.mkdirs())
+		{
+			throw new IOException("Couldn't create the folder " + folder.getAbsolutePath() + " for the planes of the import manifest.");
+		}
+		String prefix = hash(f.getAbsolutePath() + "\t" + settings).substring(0, 16) + "_" + hash.substring(0, 16) + "_";
+		TreeMap<DimensionMap,String> kept = new TreeMap<DimensionMap,String>();
+		int i = 0;
+		for (DimensionMap map : planes.keySet())
+		{
+			String planePath = planes.get(map);
+			File keptPlane = new File(folder, prefix + i + "." + getExtension(planePath));
+			linkOrCopy(new File(planePath), keptPlane);
+			kept.put(map.copy(), keptPlane.getAbsolutePath());
+			i++;
+		}
+		Record r = new Record(f.getAbsolutePath(), f.length(), f.lastModified(), hash, settings, tableCopy, kept);
+		this.records.put(r.path, r);
+		this.added.put(r.path, r);
+	}
+
+	/**
+	 * Write the manifest, merged with the records saved by other imports since
+	 * it was loaded, to a temporary file and then move it in place so an
+	 * interrupted save doesn't corrupt the previous manifest. Kept planes of
+	 * replaced records are deleted.
+	 */
+	public void save() throws IOException
+	{
+		synchronized(this.lock)
+		{
+			TreeMap<String,Record> merged = new TreeMap<String,Record>();
+			read(this.manifestFile, merged);
+			Set<String> keptPlanes = new HashSet<String>();
+			for (Record r : this.added.values())
+			{
+				keptPlanes.addAll(r.planes.values());
+			}
+			for (Record r : this.added.values())
+			{
+				Record replaced = merged.put(r.path, r);
+				if(replaced != null)
+				{
+					for (String planePath : replaced.planes.values())
+					{
+						if(!keptPlanes.contains(planePath))
+						{
+							new File(planePath).delete();
+						}
+					}
+				}
+			}
+			this.write(merged);
+			this.records.clear();
+			this.records.putAll(merged);
+			this.added.clear();
+		}
+	}
+
+	private void write(TreeMap<String,Record> toWrite) throws IOException
+	{
+		File temp = new File(this.manifestFile.getAbsolutePath() + ".tmp");
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), UTF8));
+		try
+		{
+			writer.write(HEADER);
+			writer.newLine();
+			for (Record r : toWrite.values())
+			{
+				writer.write(FILE + "\t" + escape(r.path) + "\t" + r.size + "\t" + r.lastModified + "\t" + r.hash + "\t" + escape(r.settings));
+				writer.newLine();
+				for (Dim d : r.table)
+				{
+					writer.write(DIM + "\t" + escape(d.dimName));
+					for (int i = 0; i < d.size(); i++)
+					{
+						writer.write("\t" + escape(d.valueAt(i)));
+					}
+					writer.newLine();
+				}
+				for (DimensionMap map : r.planes.keySet())
+				{
+					writer.write(PLANE + "\t" + escape(r.planes.get(map)));
+					for (Entry<String,String> e : map.entrySet())
+					{
+						writer.write("\t" + escape(e.getKey()) + "\t" + escape(e.getValue()));
+					}
+					writer.newLine();
+				}
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+		if(this.manifestFile.exists() && !this.manifestFile.delete())
+		{
+			throw new IOException("Couldn't replace import manifest " + this.manifestFile.getAbsolutePath());
+		}
+		if(!temp.renameTo(this.manifestFile))
+		{
+			throw new IOException("Couldn't write import manifest " + this.manifestFile.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * @return s with backslashes, tabs and line breaks escaped so it is a
+	 *         single field of a line
+	 */
+	private static String escape(String s)
+	{
+		StringBuilder ret = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if(c == '\\')
+			{
+				ret.append("\\\\");
+			}
+			else if(c == '\t')
+			{
+				ret.append("\\t");
+			}
+			else if(c == '\n')
+			{
+				ret.append("\\n");
+			}
+			else if(c == '\r')
+			{
+				ret.append("\\r");
+			}
+			else
+			{
+				ret.append(c);
+			}
+		}
+		return ret.toString();
+	}
+
+	private static String unescape(String s)
+	{
+		if(s.indexOf('\\') < 0)
+		{
+			return s;
+		}
+		StringBuilder ret = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if(c == '\\' && i + 1 < s.length())
+			{
+				i++;
+				char e = s.charAt(i);
+				ret.append(e == 't' ? '\t' : (e == 'n' ? '\n' : (e == 'r' ? '\r' : e)));
+			}
+			else
+			{
+				ret.append(c);
+			}
+		}
+		return ret.toString();
+	}
+
+	/**
+	 * @return the extension of the file at path (without the dot), tif if none
+	 */
+	private static String getExtension(String path)
+	{
+		String name = new File(path).getName();
+		int dot = name.lastIndexOf('.');
+		return dot < 0 ? "tif" : name.substring(dot + 1);
+	}
+
+	private File getPlaneFolder()
+	{
+		return new File(this.manifestFile.getAbsolutePath() + ".planes");
+	}
+
+	private static Object getLock(File manifestFile)
+	{
+		String key;
+		try
+		{
+			key = manifestFile.getCanonicalPath();
+		}
+		catch (IOException e)
+		{
+			key = manifestFile.getAbsolutePath();
+		}
+		synchronized(locks)
+		{
+			Object ret = locks.get(key);
+			if(ret == null)
+			{
+				ret = new Object();
+				locks.put(key, ret);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Hard link to (or, if the file system can't, copy) source at target,
+	 * replacing any existing target.
+	 */
+	private static void linkOrCopy(File source, File target) throws IOException
+	{
+		Files.deleteIfExists(target.toPath());
+		try
+		{
+			Files.createLink(target.toPath(), source.toPath());
+		}
+		catch (Exception e)
+		{
+			Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * @return the MD5 hash of the contents of f as a hex string
+	 */
+	public static String hash(File f) throws IOException
+	{
+		MessageDigest md5 = getMD5();
+		InputStream in = new FileInputStream(f);
+		try
+		{
+			byte[] buffer = new byte[1 << 20];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+			{
+				md5.update(buffer, 0, n);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return toHex(md5.digest());
+	}
+
+	private static String hash(String s) throws IOException
+	{
+		return toHex(getMD5().digest(s.getBytes(UTF8)));
+	}
+
+	private static MessageDigest getMD5() throws IOException
+	{
+		try
+		{
+			return MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IOException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder ret = new StringBuilder();
+		for (byte b : bytes)
+		{
+			ret.append(String.format("%02x", b & 0xff));
+		}
+		return ret.toString();
+	}
+
+	private static void close(BufferedReader reader)
+	{
+		if(reader != null)
+		{
+			try
+			{
+				reader.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
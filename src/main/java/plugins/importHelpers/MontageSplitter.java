@@ -0,0 +1,104 @@
+package plugins.importHelpers;
+
+import ij.process.ImageProcessor;
+
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+
+import miscellaneous.Canceler;
+import plugins.parallelHelpers.ParallelUtility;
+
+/**
+ * Splits a montage into its tiles by copying the rows of each tile straight
+ * out of the pixel array of the montage. The montage processor is only read
+ * (its ROI is never set) so tiles can be extracted concurrently.
+ *
+ */
+public class MontageSplitter {
+
+	/**
+	 * Receives each tile of the montage.
+	 */
+	public interface TileHandler
+	{
+		/**
+		 * @return false to stop splitting
+		 */
+		public boolean handleTile(int row, int col, ImageProcessor tile) throws Exception;
+	}
+
+	/**
+	 * Copy the w x h region at (x, y) of src into a new processor of the same
+	 * type.
+	 */
+	public static ImageProcessor extractTile(ImageProcessor src, int x, int y, int w, int h)
+	{
+		ImageProcessor ret = src.createProcessor(w, h);
+		Object srcPixels = src.getPixels();
+		Object dstPixels = ret.getPixels();
+		int srcWidth = src.getWidth();
+		for (int row = 0; row < h; row++)
+		{
+			System.arraycopy(srcPixels, (y + row) * srcWidth + x, dstPixels, row * w, w);
+		}
+		return ret;
+	}
+
+	/**
+	 * Split the montage into rows x cols tiles (ignoring any remainder pixels
+	 * on the right and bottom edges) and pass each tile to the handler.
+	 *
+	 * @param parallel extract and handle the tiles on the shared worker pool
+	 *            (the handler must then be thread-safe)
+	 * @return false if canceled, if the handler returned false, or if a tile
+	 *         failed
+	 */
+	public static boolean split(final ImageProcessor src, int rows, int cols, final TileHandler handler, boolean parallel, final Canceler canceler) throws Exception
+	{
+		final int w = src.getWidth() / cols;
+		final int h = src.getHeight() / rows;
+
+		if(!parallel)
+		{
+			for (int r = 0; r < rows; r++)
+			{
+				for (int c = 0; c < cols; c++)
+				{
+					if(canceler.isCanceled())
+					{
+						return false;
+					}
+					if(!handler.handleTile(r, c, extractTile(src, c * w, r * h, w, h)))
+					{
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		List<Callable<Boolean>> tasks = new Vector<Callable<Boolean>>();
+		for (int r = 0; r < rows; r++)
+		{
+			for (int c = 0; c < cols; c++)
+			{
+				final int row = r;
+				final int col = c;
+				tasks.add(new Callable<Boolean>() {
+
+					@Override
+					public Boolean call() throws Exception
+					{
+						if(canceler.isCanceled())
+						{
+							return false;
+						}
+						return handler.handleTile(row, col, extractTile(src, col * w, row * h, w, h));
+					}
+				});
+			}
+		}
+		return ParallelUtility.invokeAll(tasks);
+	}
+}
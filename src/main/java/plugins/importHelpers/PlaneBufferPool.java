@@ -0,0 +1,90 @@
+package plugins.importHelpers;
+
+import ij.process.ImageProcessor;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of primitive pixel buffers that are reused from plane to plane during
+ * an import. All planes of a file usually have the same size so, once the
+ * pool is warm, decoding a plane no longer allocates a pixel array.
+ *
+ * A buffer must only be released once the processor wrapping it is no longer
+ * used (i.e., after it has been saved).
+ *
+ */
+public class PlaneBufferPool {
+
+	private final ConcurrentLinkedQueue<short[]> shorts = new ConcurrentLinkedQueue<short[]>();
+	private final ConcurrentLinkedQueue<float[]> floats = new ConcurrentLinkedQueue<float[]>();
+	private final AtomicInteger pooled = new AtomicInteger(0);
+	private final int maxPooled;
+
+	/**
+	 * @param maxPooled maximum number of idle buffers kept by the pool
+	 *            (usually the number of planes that can be in flight at once)
+	 */
+	public PlaneBufferPool(int maxPooled)
+	{
+		this.maxPooled = Math.max(1, maxPooled);
+	}
+
+	public short[] getShorts(int length)
+	{
+		short[] ret = this.shorts.poll();
+		if(ret != null)
+		{
+			this.pooled.decrementAndGet();
+			if(ret.length == length)
+			{
+				return ret;
+			}
+		}
+		return new short[length];
+	}
+
+	public float[] getFloats(int length)
+	{
+		float[] ret = this.floats.poll();
+		if(ret != null)
+		{
+			this.pooled.decrementAndGet();
+			if(ret.length == length)
+			{
+				return ret;
+			}
+		}
+		return new float[length];
+	}
+
+	/**
+	 * Return the pixel buffer of the processor to the pool. Byte planes wrap
+	 * the bytes returned by SCIFIO directly and are not pooled.
+	 */
+	public void release(ImageProcessor ip)
+	{
+		if(ip == null)
+		{
+			return;
+		}
+		Object pixels = ip.getPixels();
+		if(!(pixels instanceof short[]) && !(pixels instanceof float[]))
+		{
+			return;
+		}
+		if(this.pooled.incrementAndGet() > this.maxPooled)
+		{
+			this.pooled.decrementAndGet();
+			return;
+		}
+		if(pixels instanceof short[])
+		{
+			this.shorts.offer((short[]) pixels);
+		}
+		else
+		{
+			this.floats.offer((float[]) pixels);
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package plugins.importHelpers;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import io.scif.ImageMetadata;
+import io.scif.Plane;
+import io.scif.Reader;
+import io.scif.SCIFIO;
+import io.scif.config.SCIFIOConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import logs.Logs;
+import miscellaneous.Canceler;
+
+/**
+ * Decodes the planes of an image file on a pool of reader threads (each with
+ * its own SCIFIO Reader) and hands the decoded planes to a pool of writer
+ * threads through a bounded queue.
+ *
+ * Planes are numbered sequentially in the same order as the nested
+ * image/plane loop of the importer (i.e., image index major, plane index
+ * minor) so callers can assign DimensionMaps by index regardless of the
+ * order in which planes finish.
+ *
+ */
+public class PlaneImportPipeline {
+
+	/**
+	 * Receives each decoded plane on one of the writer threads. The pixel
+	 * buffer of the plane is reused once the handler returns so the handler
+	 * must not keep a reference to it.
+	 */
+	public interface PlaneHandler
+	{
+		/**
+		 * @param planeIndex sequential index of the plane within the file
+		 * @param ip the decoded plane
+		 * @return false to abort the import
+		 */
+		public boolean handlePlane(int planeIndex, ImageProcessor ip) throws Exception;
+	}
+
+	private static final long QUEUE_POLL_MILLIS = 100;
+
+	private final SCIFIO scifio;
+	private final int nThreads;
+
+	/**
+	 * @param scifio shared SCIFIO context used to initialize the per-thread readers
+	 * @param nThreads number of decoding threads (the same number of writing threads is used)
+	 */
+	public PlaneImportPipeline(SCIFIO scifio, int nThreads)
+	{
+		this.scifio = scifio;
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * Import all planes of the file. The reader passed in is only used to
+	 * enumerate the planes and is not shared with the worker threads.
+	 *
+	 * @return true if all planes were decoded and handled (planes that
+	 *         couldn't be read are logged and skipped as in the sequential
+	 *         import)
+	 */
+	public boolean run(final String path, Reader reader, final PlaneHandler handler, final Canceler canceler)
+	{
+		// Enumerate the planes in the same order as the sequential import
+		int count = 0;
+		for (int i = 0; i < reader.getImageCount(); i++)
+		{
+			count = count + (int) reader.getPlaneCount(i);
+		}
+		final int total = count;
+		final int[] imageIndices = new int[total];
+		final long[] planeIndices = new long[total];
+		int k = 0;
+		for (int i = 0; i < reader.getImageCount(); i++)
+		{
+			for (long j = 0; j < reader.getPlaneCount(i); j++)
+			{
+				imageIndices[k] = i;
+				planeIndices[k] = j;
+				k++;
+			}
+		}
+
+		final BlockingQueue<DecodedPlane> queue = new ArrayBlockingQueue<DecodedPlane>(2 * nThreads);
+		final AtomicInteger nextPlane = new AtomicInteger(0);
+		final AtomicBoolean abort = new AtomicBoolean(false);
+		final CountDownLatch decodersRemaining = new CountDownLatch(nThreads);
+		
+		// Enough buffers for the planes in the queue and those being decoded or written
+		final PlaneBufferPool buffers = new PlaneBufferPool(4 * nThreads);
+
+		ExecutorService pool = Executors.newFixedThreadPool(2 * nThreads);
+		List<Future<Void>> futures = new Vector<Future<Void>>();
+		try
+		{
+			for (int t = 0; t < nThreads; t++)
+			{
+				futures.add(pool.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception
+					{
+						try
+						{
+							decode(path, imageIndices, planeIndices, total, nextPlane, queue, buffers, abort, canceler);
+						}
+						catch (Exception e)
+						{
+							abort.set(true);
+							throw e;
+						}
+						finally
+						{
+							decodersRemaining.countDown();
+						}
+						return null;
+					}
+				}));
+			}
+			for (int t = 0; t < nThreads; t++)
+			{
+				futures.add(pool.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception
+					{
+						try
+						{
+							write(handler, queue, buffers, decodersRemaining, abort, canceler);
+						}
+						catch (Exception e)
+						{
+							abort.set(true);
+							throw e;
+						}
+						return null;
+					}
+				}));
+			}
+
+			for (Future<Void> f : futures)
+			{
+				try
+				{
+					f.get();
+				}
+				catch (ExecutionException e)
+				{
+					Logs.log("Failed to import planes of " + path, Logs.ERROR, this);
+					e.getCause().printStackTrace();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			abort.set(true);
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+
+		return !abort.get() && !canceler.isCanceled();
+	}
+
+	private void decode(String path, int[] imageIndices, long[] planeIndices, int total, AtomicInteger nextPlane, BlockingQueue<DecodedPlane> queue, PlaneBufferPool buffers, AtomicBoolean abort, Canceler canceler) throws Exception
+	{
+		Reader reader = this.scifio.initializer().initializeReader(path, new SCIFIOConfig().checkerSetOpen(true));
+		try
+		{
+			int k = nextPlane.getAndIncrement();
+			while (k < total && !abort.get())
+			{
+				if(canceler.isCanceled())
+				{
+					abort.set(true);
+					return;
+				}
+				int i = imageIndices[k];
+				long j = planeIndices[k];
+				Plane plane = null;
+				try
+				{
+					plane = reader.openPlane(i, j);
+				}
+				catch (Exception e)
+				{
+					Logs.log("Couldn't read image " + i + " plane " + j + " in " + path + ". Skipping to next plane.", Logs.ERROR, this);
+					e.printStackTrace();
+				}
+				if(plane != null)
+				{
+					ImageProcessor ip = getProcessor(plane, buffers);
+					if(ip == null)
+					{
+						Logs.log("Couldn't handle writing of image with this particular bits-per-pixel: " + plane.getImageMetadata().getBitsPerPixel(), Logs.ERROR, this);
+						abort.set(true);
+						return;
+					}
+					DecodedPlane decoded = new DecodedPlane(k, ip);
+					while (!queue.offer(decoded, QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS))
+					{
+						if(abort.get())
+						{
+							return;
+						}
+					}
+				}
+				k = nextPlane.getAndIncrement();
+			}
+		}
+		finally
+		{
+			try
+			{
+				reader.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void write(PlaneHandler handler, BlockingQueue<DecodedPlane> queue, PlaneBufferPool buffers, CountDownLatch decodersRemaining, AtomicBoolean abort, Canceler canceler) throws Exception
+	{
+		while (!abort.get())
+		{
+			DecodedPlane decoded = queue.poll(QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+			if(decoded == null)
+			{
+				// Decoders enqueue before counting down so an empty queue after
+				// the last count down means everything has been handled.
+				if(decodersRemaining.getCount() == 0 && queue.isEmpty())
+				{
+					return;
+				}
+				continue;
+			}
+			if(canceler.isCanceled() || !handler.handlePlane(decoded.index, decoded.ip))
+			{
+				abort.set(true);
+				return;
+			}
+			// The handler has saved the plane so its buffer can be reused
+			buffers.release(decoded.ip);
+		}
+	}
+
+	/**
+	 * Convert a SCIFIO plane to an ImageJ processor of the corresponding bit
+	 * depth. 8-bit planes wrap the plane bytes directly. 16- and 32-bit planes
+	 * are read through a ByteBuffer view of the plane bytes (in the byte order
+	 * of the plane) into a buffer taken from the pool, so no intermediate array
+	 * is allocated.
+	 *
+	 * @param pool source of reusable pixel buffers (null to allocate new ones)
+	 * @return the processor or null if the bits-per-pixel of the plane is not
+	 *         supported
+	 */
+	public static ImageProcessor getProcessor(Plane plane, PlaneBufferPool pool)
+	{
+		ImageMetadata d = plane.getImageMetadata();
+		long[] dims = d.getAxesLengthsPlanar();
+		return getProcessor(plane.getBytes(), (int) dims[0], (int) dims[1], d.getBitsPerPixel(), d.isLittleEndian(), pool);
+	}
+
+	/**
+	 * Convert raw plane bytes as returned by SCIFIO (see
+	 * getProcessor(Plane, PlaneBufferPool)).
+	 */
+	static ImageProcessor getProcessor(byte[] bytes, int width, int height, int bitsPerPixel, boolean littleEndian, PlaneBufferPool pool)
+	{
+		ImageProcessor ip = null;
+		if(bitsPerPixel <= 8)
+		{
+			ip = new ByteProcessor(width, height, bytes, null);
+		}
+		else if(bitsPerPixel >= 9 && bitsPerPixel <= 16)
+		{
+			short[] converted = (pool == null) ? new short[width * height] : pool.getShorts(width * height);
+			getByteBuffer(bytes, littleEndian).asShortBuffer().get(converted);
+			ip = new ShortProcessor(width, height, converted, null);
+		}
+		else if(bitsPerPixel >= 17 && bitsPerPixel <= 32)
+		{
+			float[] converted = (pool == null) ? new float[width * height] : pool.getFloats(width * height);
+			getByteBuffer(bytes, littleEndian).asFloatBuffer().get(converted);
+			ip = new FloatProcessor(width, height, converted, null);
+		}
+		return ip;
+	}
+
+	private static ByteBuffer getByteBuffer(byte[] bytes, boolean littleEndian)
+	{
+		return ByteBuffer.wrap(bytes).order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+	}
+
+	private static class DecodedPlane {
+
+		final int index;
+		final ImageProcessor ip;
+
+		DecodedPlane(int index, ImageProcessor ip)
+		{
+			this.index = index;
+			this.ip = ip;
+		}
+	}
+}
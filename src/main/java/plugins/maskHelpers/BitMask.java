@@ -0,0 +1,273 @@
+package plugins.maskHelpers;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import logs.Logs;
+import Database.SingleUserDatabase.JEXWriter;
+
+/**
+ * Binary mask of a plane packed 64 pixels per long (pixel x, y is bit
+ * y*width + x), i.e., 1/8 of the memory of a 0/255 ByteProcessor, with
+ * word-parallel AND, OR, XOR and counting.
+ *
+ * Masks are saved as 1-bit TIFF files (see BitMaskTiff) that ImageJ, and
+ * thus JEX, opens as 0/255 8-bit images, so bit-packed mask objects can be
+ * used by any function expecting a mask.
+ *
+ */
+public class BitMask {
+
+	private final int width, height;
+	private final long[] words;
+
+	public BitMask(int width, int height)
+	{
+		this.width = width;
+		this.height = height;
+		this.words = new long[(int) ((((long) width) * height + 63) >>> 6)];
+	}
+
+	public int getWidth()
+	{
+		return this.width;
+	}
+
+	public int getHeight()
+	{
+		return this.height;
+	}
+
+	public boolean get(int x, int y)
+	{
+		int i = y * this.width + x;
+		return (this.words[i >>> 6] & (1L << i)) != 0;
+	}
+
+	public void set(int x, int y, boolean on)
+	{
+		int i = y * this.width + x;
+		if(on)
+		{
+			this.words[i >>> 6] |= 1L << i;
+		}
+		else
+		{
+			this.words[i >>> 6] &= ~(1L << i);
+		}
+	}
+
+	public boolean isSameSize(BitMask other)
+	{
+		return other != null && other.width == this.width && other.height == this.height;
+	}
+
+	public BitMask copy()
+	{
+		BitMask ret = new BitMask(this.width, this.height);
+		System.arraycopy(this.words, 0, ret.words, 0, this.words.length);
+		return ret;
+	}
+
+	/**
+	 * Keep only the pixels also set in other.
+	 *
+	 * @return this
+	 */
+	public BitMask and(BitMask other)
+	{
+		this.checkSize(other);
+		for (int i = 0; i < this.words.length; i++)
+		{
+			this.words[i] &= other.words[i];
+		}
+		return this;
+	}
+
+	/**
+	 * Add the pixels set in other.
+	 *
+	 * @return this
+	 */
+	public BitMask or(BitMask other)
+	{
+		this.checkSize(other);
+		for (int i = 0; i < this.words.length; i++)
+		{
+			this.words[i] |= other.words[i];
+		}
+		return this;
+	}
+
+	/**
+	 * Keep the pixels set in only one of this and other.
+	 *
+	 * @return this
+	 */
+	public BitMask xor(BitMask other)
+	{
+		this.checkSize(other);
+		for (int i = 0; i < this.words.length; i++)
+		{
+			this.words[i] ^= other.words[i];
+		}
+		return this;
+	}
+
+	/**
+	 * Remove the pixels set in other.
+	 *
+	 * @return this
+	 */
+	public BitMask andNot(BitMask other)
+	{
+		this.checkSize(other);
+		for (int i = 0; i < this.words.length; i++)
+		{
+			this.words[i] &= ~other.words[i];
+		}
+		return this;
+	}
+
+	/**
+	 * @return the number of pixels set
+	 */
+	public int cardinality()
+	{
+		int ret = 0;
+		for (long w : this.words)
+		{
+			ret = ret + Long.bitCount(w);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the mask as a 0/255 image
+	 */
+	public ByteProcessor toByteProcessor()
+	{
+		return this.toByteProcessor(0, 255);
+	}
+
+	/**
+	 * @return an image that is on where the mask is set and off elsewhere
+	 */
+	public ByteProcessor toByteProcessor(int off, int on)
+	{
+		byte[] pixels = new byte[this.width * this.height];
+		if(off != 0)
+		{
+			Arrays.fill(pixels, (byte) off);
+		}
+		ByteProcessor ret = new ByteProcessor(this.width, this.height, pixels, null);
+		this.paint(ret, on);
+		return ret;
+	}
+
+	/**
+	 * Set the pixels of ip where the mask is set to value.
+	 */
+	public void paint(ByteProcessor ip, int value)
+	{
+		byte[] pixels = (byte[]) ip.getPixels();
+		byte v = (byte) value;
+		for (int k = 0; k < this.words.length; k++)
+		{
+			long w = this.words[k];
+			while (w != 0)
+			{
+				pixels[(k << 6) + Long.numberOfTrailingZeros(w)] = v;
+				w = w & (w - 1);
+			}
+		}
+	}
+
+	/**
+	 * @return the mask of the 255 pixels of ip, or null if ip isn't an 8-bit
+	 *         image holding only 0 and 255
+	 */
+	public static BitMask fromProcessor(ImageProcessor ip)
+	{
+		if(!(ip instanceof ByteProcessor))
+		{
+			return null;
+		}
+		byte[] pixels = (byte[]) ip.getPixels();
+		BitMask ret = new BitMask(ip.getWidth(), ip.getHeight());
+		for (int i = 0; i < pixels.length; i++)
+		{
+			if(pixels[i] == (byte) 255)
+			{
+				ret.words[i >>> 6] |= 1L << i;
+			}
+			else if(pixels[i] != 0)
+			{
+				return null;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Read the mask saved at path if it is a 1-bit TIFF (e.g., saved by
+	 * saveImage). Other images aren't decoded so they can be opened once with
+	 * ImageJ by the caller.
+	 *
+	 * @return the mask or null if the file isn't a 1-bit TIFF
+	 */
+	public static BitMask read(String path)
+	{
+		try
+		{
+			return BitMaskTiff.read(new File(path));
+		}
+		catch (IOException e)
+		{
+			Logs.log("Couldn't read " + path + " as a bit-packed mask, trying ImageJ.", Logs.ERROR, BitMask.class);
+			return null;
+		}
+	}
+
+	/**
+	 * Save ip as a 1-bit TIFF if it holds only 0 and 255 (otherwise as usual
+	 * with JEXWriter.saveImage).
+	 *
+	 * @return the path of the saved file or null if it couldn't be saved
+	 */
+	public static String saveImage(ImageProcessor ip)
+	{
+		BitMask mask = fromProcessor(ip);
+		if(mask == null)
+		{
+			return JEXWriter.saveImage(ip);
+		}
+		try
+		{
+			return BitMaskTiff.saveImage(mask);
+		}
+		catch (IOException e)
+		{
+			Logs.log("Couldn't write the mask to a TIFF file.", Logs.ERROR, BitMask.class);
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	long[] getWords()
+	{
+		return this.words;
+	}
+
+	private void checkSize(BitMask other)
+	{
+		if(!this.isSameSize(other))
+		{
+			throw new IllegalArgumentException("Masks of different sizes.");
+		}
+	}
+}
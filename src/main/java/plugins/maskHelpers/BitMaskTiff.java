@@ -0,0 +1,217 @@
+package plugins.maskHelpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import plugins.tiffHelpers.DirectTiffWriter;
+import Database.SingleUserDatabase.JEXWriter;
+
+/**
+ * Reads and writes BitMasks as uncompressed, single-strip, 1-bit
+ * (BlackIsZero) TIFF files, with each row starting on a byte and the first
+ * pixel of each byte in its highest bit as in any bilevel TIFF. The files are
+ * written with the helpers of DirectTiffWriter.
+ *
+ */
+public class BitMaskTiff {
+
+	public static final short TAG_FILL_ORDER = 266;
+
+	/**
+	 * Save the mask to a new unique file in the temp folder of the database
+	 * (like JEXWriter.saveImage).
+	 *
+	 * @return the path of the saved file
+	 */
+	public static String saveImage(BitMask mask) throws IOException
+	{
+		String path = JEXWriter.getDatabaseFolder() + File.separator + JEXWriter.getUniqueRelativeTempPath("tif");
+		write(mask, new File(path));
+		return path;
+	}
+
+	/**
+	 * Write the mask to f, replacing any existing file.
+	 */
+	public static void write(BitMask mask, File f) throws IOException
+	{
+		int width = mask.getWidth(), height = mask.getHeight();
+		int rowBytes = (width + 7) / 8;
+		long pixelBytes = ((long) rowBytes) * height;
+		if(DirectTiffWriter.PIXEL_OFFSET + pixelBytes > Integer.MAX_VALUE)
+		{
+			throw new IOException("Mask is too large to write as a single strip TIFF.");
+		}
+
+		ByteBuffer buffer = DirectTiffWriter.getBuffer((int) (DirectTiffWriter.PIXEL_OFFSET + pixelBytes));
+		DirectTiffWriter.putHeader(buffer, 8);
+		DirectTiffWriter.putIfd(buffer, width, height, 1, DirectTiffWriter.SAMPLE_FORMAT_UINT, DirectTiffWriter.PIXEL_OFFSET, pixelBytes, 0);
+		buffer.position(DirectTiffWriter.PIXEL_OFFSET);
+		long[] words = mask.getWords();
+		byte[] row = new byte[rowBytes];
+		int i = 0;
+		for (int y = 0; y < height; y++)
+		{
+			Arrays.fill(row, (byte) 0);
+			for (int x = 0; x < width; x++, i++)
+			{
+				if((words[i >>> 6] & (1L << i)) != 0)
+				{
+					row[x >>> 3] |= 0x80 >>> (x & 7);
+				}
+			}
+			buffer.put(row);
+		}
+		buffer.flip();
+
+		DirectTiffWriter.writeFully(buffer, f, false);
+	}
+
+	/**
+	 * @return the mask in f, or null if f isn't a single-strip, uncompressed,
+	 *         BlackIsZero 1-bit TIFF
+	 */
+	public static BitMask read(File f) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+
+			// Header
+			ByteBuffer header = read(channel, 0, 8, ByteOrder.LITTLE_ENDIAN);
+			if(header == null)
+			{
+				return null;
+			}
+			if(header.get(0) == 'M' && header.get(1) == 'M')
+			{
+				header.order(ByteOrder.BIG_ENDIAN);
+			}
+			else if(header.get(0) != 'I' || header.get(1) != 'I')
+			{
+				return null;
+			}
+			if(header.getShort(2) != 42)
+			{
+				return null;
+			}
+			ByteOrder order = header.order();
+			long ifd = header.getInt(4) & 0xffffffffL;
+
+			// First IFD
+			ByteBuffer count = read(channel, ifd, 2, order);
+			if(count == null)
+			{
+				return null;
+			}
+			int entries = count.getShort(0) & 0xffff;
+			ByteBuffer ifdBuffer = read(channel, ifd + 2, 12 * entries, order);
+			if(ifdBuffer == null)
+			{
+				return null;
+			}
+			long width = -1, height = -1, bits = 1, compression = 1, photometric = -1, fillOrder = 1, samples = 1, stripOffset = -1;
+			for (int e = 0; e < entries; e++)
+			{
+				int pos = 12 * e;
+				short tag = ifdBuffer.getShort(pos);
+				int type = ifdBuffer.getShort(pos + 2);
+				long n = ifdBuffer.getInt(pos + 4) & 0xffffffffL;
+				long value = type == DirectTiffWriter.TYPE_SHORT ? ifdBuffer.getShort(pos + 8) & 0xffff : ifdBuffer.getInt(pos + 8) & 0xffffffffL;
+				if(tag == DirectTiffWriter.TAG_IMAGE_WIDTH)
+				{
+					width = value;
+				}
+				else if(tag == DirectTiffWriter.TAG_IMAGE_LENGTH)
+				{
+					height = value;
+				}
+				else if(tag == DirectTiffWriter.TAG_BITS_PER_SAMPLE)
+				{
+					bits = n == 1 ? value : -1;
+				}
+				else if(tag == DirectTiffWriter.TAG_COMPRESSION)
+				{
+					compression = value;
+				}
+				else if(tag == DirectTiffWriter.TAG_PHOTOMETRIC)
+				{
+					photometric = value;
+				}
+				else if(tag == TAG_FILL_ORDER)
+				{
+					fillOrder = value;
+				}
+				else if(tag == DirectTiffWriter.TAG_SAMPLES_PER_PIXEL)
+				{
+					samples = value;
+				}
+				else if(tag == DirectTiffWriter.TAG_STRIP_OFFSETS)
+				{
+					// single strip only
+					stripOffset = n == 1 ? value : -1;
+				}
+			}
+			if(bits != 1 || compression != 1 || photometric != 1 || fillOrder != 1 || samples != 1 || width <= 0 || height <= 0 || stripOffset < 0 || width * height > Integer.MAX_VALUE)
+			{
+				return null;
+			}
+
+			// Pixels
+			int rowBytes = (int) ((width + 7) / 8);
+			if(stripOffset + ((long) rowBytes) * height > size)
+			{
+				return null;
+			}
+			ByteBuffer strip = read(channel, stripOffset, rowBytes * (int) height, order);
+			BitMask ret = new BitMask((int) width, (int) height);
+			long[] words = ret.getWords();
+			int i = 0;
+			for (int y = 0; y < height; y++)
+			{
+				int rowStart = y * rowBytes;
+				for (int x = 0; x < width; x++, i++)
+				{
+					if((strip.get(rowStart + (x >>> 3)) & (0x80 >>> (x & 7))) != 0)
+					{
+						words[i >>> 6] |= 1L << i;
+					}
+				}
+			}
+			return ret;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the bytes of the channel from position or null if the channel
+	 *         ends before
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int bytes, ByteOrder order) throws IOException
+	{
+		if(position + bytes > channel.size())
+		{
+			return null;
+		}
+		ByteBuffer ret = ByteBuffer.allocate(bytes).order(order);
+		while (ret.hasRemaining())
+		{
+			if(channel.read(ret, position + ret.position()) < 0)
+			{
+				return null;
+			}
+		}
+		ret.flip();
+		return ret;
+	}
+}
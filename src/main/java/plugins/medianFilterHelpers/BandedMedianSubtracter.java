@@ -0,0 +1,171 @@
+package plugins.medianFilterHelpers;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+
+import plugins.parallelHelpers.ParallelUtility;
+import function.plugin.plugins.medianFilterHelpers.FastMedian;
+
+/**
+ * Median background subtraction split into row bands that are processed in
+ * parallel.
+ *
+ * Each band is filtered together with kernalWidth rows of overlap above and
+ * below so the median of every row kept from the band sees exactly the same
+ * neighborhood as it would when filtering the whole image (the top and bottom
+ * bands end at the image edges just like the whole image). The median of each
+ * band is computed by FastMedian and the subtraction is fused into the copy of
+ * the band back into the image, reproducing
+ *
+ * <pre>
+ * median.subtract(nominal);
+ * ip.copyBits(median, 0, 0, Blitter.SUBTRACT);
+ * </pre>
+ *
+ * (rounding and clipping included) without a full size median image.
+ *
+ */
+public class BandedMedianSubtracter {
+
+	public static boolean isSupported(ImageProcessor ip)
+	{
+		return ip instanceof ByteProcessor || ip instanceof ShortProcessor || ip instanceof FloatProcessor;
+	}
+
+	/**
+	 * Subtract the median filtered image minus nominal from ip, in place.
+	 *
+	 * @return false if a band failed (ip is then left partially subtracted)
+	 */
+	public static boolean process(final ImageProcessor ip, final int kernalWidth, final double nominal)
+	{
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final int overlap = Math.max(1, kernalWidth);
+		final int[] bounds = ParallelUtility.getBands(height, 4 * overlap);
+		final ImageProcessor[] bands = new ImageProcessor[bounds.length - 1];
+
+		// Copy all the bands (with overlap) before any row of ip is overwritten
+		List<Callable<Boolean>> tasks = new Vector<Callable<Boolean>>();
+		for (int i = 0; i < bands.length; i++)
+		{
+			final int band = i;
+			tasks.add(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call()
+				{
+					int y0 = Math.max(0, bounds[band] - overlap);
+					int y1 = Math.min(height, bounds[band + 1] + overlap);
+					bands[band] = copyRows(ip, y0, y1);
+					return true;
+				}
+			});
+		}
+		if(!ParallelUtility.invokeAll(tasks))
+		{
+			return false;
+		}
+
+		tasks.clear();
+		for (int i = 0; i < bands.length; i++)
+		{
+			final int band = i;
+			tasks.add(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call()
+				{
+					int y0 = Math.max(0, bounds[band] - overlap);
+					ImageProcessor median = FastMedian.process(bands[band], kernalWidth);
+					bands[band] = null;
+					if(median.getPixels().getClass() != ip.getPixels().getClass())
+					{
+						return false;
+					}
+					subtract(ip, median, nominal, (bounds[band] - y0) * width, bounds[band] * width, (bounds[band + 1] - bounds[band]) * width);
+					return true;
+				}
+			});
+		}
+		return ParallelUtility.invokeAll(tasks);
+	}
+
+	private static ImageProcessor copyRows(ImageProcessor ip, int y0, int y1)
+	{
+		int width = ip.getWidth();
+		ImageProcessor ret = ip.createProcessor(width, y1 - y0);
+		System.arraycopy(ip.getPixels(), y0 * width, ret.getPixels(), 0, (y1 - y0) * width);
+		return ret;
+	}
+
+	/**
+	 * ip[dst + k] = ip[dst + k] - (median[src + k] - nominal) for k in [0, n)
+	 * with the rounding and clipping of ImageProcessor.subtract followed by a
+	 * Blitter.SUBTRACT of the same type.
+	 */
+	private static void subtract(ImageProcessor ip, ImageProcessor median, double nominal, int src, int dst, int n)
+	{
+		Object pixels = ip.getPixels();
+		if(pixels instanceof byte[])
+		{
+			byte[] p = (byte[]) pixels;
+			byte[] m = (byte[]) median.getPixels();
+			int[] lut = getSubtractLut(256, nominal);
+			for (int k = 0; k < n; k++)
+			{
+				int v = (p[dst + k] & 0xff) - lut[m[src + k] & 0xff];
+				p[dst + k] = (byte) (v < 0 ? 0 : v);
+			}
+		}
+		else if(pixels instanceof short[])
+		{
+			short[] p = (short[]) pixels;
+			short[] m = (short[]) median.getPixels();
+			int[] lut = getSubtractLut(65536, nominal);
+			for (int k = 0; k < n; k++)
+			{
+				int v = (p[dst + k] & 0xffff) - lut[m[src + k] & 0xffff];
+				p[dst + k] = (short) (v < 0 ? 0 : v);
+			}
+		}
+		else
+		{
+			float[] p = (float[]) pixels;
+			float[] m = (float[]) median.getPixels();
+			for (int k = 0; k < n; k++)
+			{
+				p[dst + k] = p[dst + k] - (float) (m[src + k] - nominal);
+			}
+		}
+	}
+
+	/**
+	 * @return the value of each integer pixel after subtract(nominal), i.e.,
+	 *         v - nominal clipped to [0, size - 1] and rounded
+	 */
+	private static int[] getSubtractLut(int size, double nominal)
+	{
+		int[] lut = new int[size];
+		for (int v = 0; v < size; v++)
+		{
+			double v2 = v - nominal;
+			if(v2 < 0)
+			{
+				v2 = 0;
+			}
+			if(v2 > size - 1)
+			{
+				v2 = size - 1;
+			}
+			lut[v] = (int) (v2 + 0.5);
+		}
+		return lut;
+	}
+}
@@ -0,0 +1,197 @@
+package plugins.medianFilterHelpers;
+
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+
+import function.plugin.plugins.medianFilterHelpers.FastMedian;
+
+/**
+ * Median background estimated on a binned image.
+ *
+ * The image is binned by averaging factor x factor blocks, the median is
+ * computed on the binned image with the kernal width divided by the same
+ * factor, and the result is upsampled bilinearly (between block centers)
+ * when it is subtracted. For large kernals the background is smooth enough
+ * that this costs little accuracy for about factor^2 less work.
+ *
+ */
+public class BinnedMedianBackground {
+
+	private final ImageProcessor median;
+	private final int factor, width, height;
+	private final int[] x0, x1, y0, y1;
+	private final float[] wx, wy;
+
+	/**
+	 * Bin ip and compute the median background of the binned image.
+	 */
+	public BinnedMedianBackground(ImageProcessor ip, int kernalWidth, int factor)
+	{
+		this.factor = Math.max(1, factor);
+		this.width = ip.getWidth();
+		this.height = ip.getHeight();
+		this.median = FastMedian.process(bin(ip, this.factor), getBinnedKernalWidth(kernalWidth, this.factor));
+
+		this.x0 = new int[this.width];
+		this.x1 = new int[this.width];
+		this.wx = new float[this.width];
+		for (int x = 0; x < this.width; x++)
+		{
+			this.setInterpolation(x, this.median.getWidth(), this.x0, this.x1, this.wx);
+		}
+		this.y0 = new int[this.height];
+		this.y1 = new int[this.height];
+		this.wy = new float[this.height];
+		for (int y = 0; y < this.height; y++)
+		{
+			this.setInterpolation(y, this.median.getHeight(), this.y0, this.y1, this.wy);
+		}
+	}
+
+	public static int getBinnedKernalWidth(int kernalWidth, int factor)
+	{
+		return Math.max(1, (int) Math.round(((double) kernalWidth) / factor));
+	}
+
+	/**
+	 * @return ip binned by averaging factor x factor blocks (partial blocks at
+	 *         the right and bottom edges average the pixels they have),
+	 *         rounded for integer images
+	 */
+	public static ImageProcessor bin(ImageProcessor ip, int factor)
+	{
+		int w = ip.getWidth();
+		int h = ip.getHeight();
+		int bw = (w + factor - 1) / factor;
+		int bh = (h + factor - 1) / factor;
+		boolean isFloat = ip.getBitDepth() == 32;
+		double[] sums = new double[bw];
+		int[] counts = new int[bw];
+		ImageProcessor ret = ip.createProcessor(bw, bh);
+		for (int by = 0; by < bh; by++)
+		{
+			Arrays.fill(sums, 0);
+			Arrays.fill(counts, 0);
+			for (int y = by * factor; y < Math.min(h, (by + 1) * factor); y++)
+			{
+				int offset = y * w;
+				for (int x = 0; x < w; x++)
+				{
+					sums[x / factor] += ip.getf(offset + x);
+					counts[x / factor]++;
+				}
+			}
+			for (int bx = 0; bx < bw; bx++)
+			{
+				double mean = sums[bx] / counts[bx];
+				ret.setf(by * bw + bx, isFloat ? (float) mean : (float) ((int) (mean + 0.5)));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Put the upsampled background of row y into row (length width).
+	 */
+	public void getRow(int y, float[] row)
+	{
+		int bw = this.median.getWidth();
+		int top = this.y0[y] * bw;
+		int bottom = this.y1[y] * bw;
+		for (int x = 0; x < this.width; x++)
+		{
+			float a = this.median.getf(top + this.x0[x]) + this.wx[x] * (this.median.getf(top + this.x1[x]) - this.median.getf(top + this.x0[x]));
+			float b = this.median.getf(bottom + this.x0[x]) + this.wx[x] * (this.median.getf(bottom + this.x1[x]) - this.median.getf(bottom + this.x0[x]));
+			row[x] = a + this.wy[y] * (b - a);
+		}
+	}
+
+	/**
+	 * Subtract the upsampled background minus nominal from ip, in place, with
+	 * the same rounding and clipping as subtracting a full resolution median
+	 * image (see BandedMedianSubtracter).
+	 */
+	public void subtract(ImageProcessor ip, double nominal)
+	{
+		float[] row = new float[this.width];
+		Object pixels = ip.getPixels();
+		int max = pixels instanceof byte[] ? 255 : 65535;
+		for (int y = 0; y < this.height; y++)
+		{
+			this.getRow(y, row);
+			int offset = y * this.width;
+			if(pixels instanceof float[])
+			{
+				float[] p = (float[]) pixels;
+				for (int x = 0; x < this.width; x++)
+				{
+					p[offset + x] = p[offset + x] - (float) (row[x] - nominal);
+				}
+				continue;
+			}
+			for (int x = 0; x < this.width; x++)
+			{
+				double v2 = row[x] - nominal;
+				if(v2 < 0)
+				{
+					v2 = 0;
+				}
+				if(v2 > max)
+				{
+					v2 = max;
+				}
+				int v = (int) ip.getf(offset + x) - (int) (v2 + 0.5);
+				ip.setf(offset + x, v < 0 ? 0 : v);
+			}
+		}
+	}
+
+	/**
+	 * @return the root mean square difference between the upsampled
+	 *         background and a full resolution median background
+	 */
+	public double getRMSError(ImageProcessor fullMedian)
+	{
+		float[] row = new float[this.width];
+		double sum = 0;
+		for (int y = 0; y < this.height; y++)
+		{
+			this.getRow(y, row);
+			int offset = y * this.width;
+			for (int x = 0; x < this.width; x++)
+			{
+				double d = row[x] - fullMedian.getf(offset + x);
+				sum = sum + d * d;
+			}
+		}
+		return Math.sqrt(sum / (((double) this.width) * this.height));
+	}
+
+	/**
+	 * Find the two block centers around full resolution coordinate i (block c
+	 * is centered at (c + 0.5) * factor - 0.5) and the weight of the second.
+	 */
+	private void setInterpolation(int i, int blocks, int[] i0, int[] i1, float[] w)
+	{
+		double c = (i + 0.5) / this.factor - 0.5;
+		if(c <= 0)
+		{
+			i0[i] = 0;
+			i1[i] = 0;
+			w[i] = 0;
+		}
+		else if(c >= blocks - 1)
+		{
+			i0[i] = blocks - 1;
+			i1[i] = blocks - 1;
+			w[i] = 0;
+		}
+		else
+		{
+			i0[i] = (int) c;
+			i1[i] = i0[i] + 1;
+			w[i] = (float) (c - i0[i]);
+		}
+	}
+}
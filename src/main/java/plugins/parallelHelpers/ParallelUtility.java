@@ -0,0 +1,102 @@
+package plugins.parallelHelpers;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import logs.Logs;
+
+/**
+ * Shared pool of worker threads for splitting the work on a single image (or
+ * the tiles of an image) across cores. The threads are daemon threads so the
+ * pool never keeps JEX from exiting.
+ *
+ * Tasks submitted here must not wait on other tasks of the same pool.
+ *
+ */
+public class ParallelUtility {
+
+	private static ExecutorService executor = null;
+
+	public static int getNumberOfProcessors()
+	{
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	public static synchronized ExecutorService getExecutor()
+	{
+		if(executor == null)
+		{
+			final AtomicInteger count = new AtomicInteger(0);
+			executor = Executors.newFixedThreadPool(getNumberOfProcessors(), new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "CTC worker " + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Split length (e.g., the rows of an image) into about equal bands of at
+	 * least minBand each, one per processor at most.
+	 *
+	 * @return the bounds of the bands, band i covering [bounds[i], bounds[i+1])
+	 */
+	public static int[] getBands(int length, int minBand)
+	{
+		int count = Math.max(1, Math.min(getNumberOfProcessors(), length / Math.max(1, minBand)));
+		int[] bounds = new int[count + 1];
+		for (int i = 0; i <= count; i++)
+		{
+			bounds[i] = (int) ((long) length * i / count);
+		}
+		return bounds;
+	}
+
+	/**
+	 * Run the tasks on the shared pool and wait for all of them.
+	 *
+	 * @return false if any task returned false or failed
+	 */
+	public static boolean invokeAll(List<Callable<Boolean>> tasks)
+	{
+		boolean ret = true;
+		try
+		{
+			List<Future<Boolean>> results = getExecutor().invokeAll(tasks);
+			for (Future<Boolean> f : results)
+			{
+				try
+				{
+					if(!f.get())
+					{
+						ret = false;
+					}
+				}
+				catch (ExecutionException e)
+				{
+					Logs.log("Parallel task failed.", Logs.ERROR, ParallelUtility.class);
+					e.getCause().printStackTrace();
+					ret = false;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			ret = false;
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,132 @@
+package plugins.parallelHelpers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import logs.Logs;
+import miscellaneous.Canceler;
+import tables.DimensionMap;
+
+/**
+ * Runs the per-plane work of a function (typically read, process and save
+ * one image) for all the DimensionMaps of an object on a bounded number of
+ * threads of its own, collecting the results in a TreeMap (i.e., in
+ * DimensionMap order whatever the order in which planes finish).
+ *
+ * The threads are not those of ParallelUtility, so the per-plane work can
+ * itself split images across cores with ParallelUtility.
+ *
+ */
+public class PlaneExecutor {
+
+	/**
+	 * The work on one plane.
+	 */
+	public interface PlaneFunction
+	{
+		/**
+		 * @return the result for this plane (e.g., the path of the saved
+		 *         image) or null to leave the plane out of the results
+		 */
+		public String process(DimensionMap map) throws Exception;
+	}
+
+	private final int nThreads;
+
+	public PlaneExecutor(int nThreads)
+	{
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * Process all the maps, stopping as soon as canceler is canceled or a
+	 * plane fails.
+	 *
+	 * @return the non-null results by map or null if canceled or a plane
+	 *         failed
+	 */
+	public TreeMap<DimensionMap,String> run(Collection<DimensionMap> maps, final PlaneFunction function, final Canceler canceler)
+	{
+		final List<DimensionMap> todo = new ArrayList<DimensionMap>(maps);
+		final TreeMap<DimensionMap,String> results = new TreeMap<DimensionMap,String>();
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicBoolean abort = new AtomicBoolean(false);
+		final ProgressReporter progress = new ProgressReporter(todo.size());
+		int threads = Math.min(this.nThreads, Math.max(1, todo.size()));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		try
+		{
+			for (int t = 0; t < threads; t++)
+			{
+				futures.add(pool.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception
+					{
+						int i;
+						while (!abort.get() && (i = next.getAndIncrement()) < todo.size())
+						{
+							if(canceler != null && canceler.isCanceled())
+							{
+								abort.set(true);
+								return null;
+							}
+							DimensionMap map = todo.get(i);
+							String result;
+							try
+							{
+								result = function.process(map);
+							}
+							catch (Exception e)
+							{
+								abort.set(true);
+								throw e;
+							}
+							if(result != null)
+							{
+								synchronized(results)
+								{
+									results.put(map, result);
+								}
+							}
+							progress.increment();
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : futures)
+			{
+				try
+				{
+					f.get();
+				}
+				catch (ExecutionException e)
+				{
+					Logs.log("Processing of a plane failed.", Logs.ERROR, PlaneExecutor.class);
+					e.getCause().printStackTrace();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			abort.set(true);
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+		return abort.get() ? null : results;
+	}
+}
@@ -0,0 +1,78 @@
+package plugins.parallelHelpers;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jex.statics.JEXStatics;
+
+/**
+ * Thread-safe progress counter that updates the JEX status bar at most once
+ * every minMillis (and only when the percentage changes), so many threads
+ * finishing small units of work don't flood the UI with updates.
+ *
+ */
+public class ProgressReporter {
+
+	public static final long DEFAULT_MILLIS = 250;
+
+	private final int total;
+	private final long minMillis;
+	private final AtomicInteger done = new AtomicInteger(0);
+	private final AtomicLong lastUpdate = new AtomicLong(0);
+	private volatile int lastPercentage = -1;
+
+	public ProgressReporter(int total)
+	{
+		this(total, DEFAULT_MILLIS);
+	}
+
+	public ProgressReporter(int total, long minMillis)
+	{
+		this.total = Math.max(1, total);
+		this.minMillis = minMillis;
+	}
+
+	/**
+	 * Count one more unit of work done.
+	 */
+	public void increment()
+	{
+		int count = this.done.incrementAndGet();
+		if(count >= this.total)
+		{
+			// always show the end
+			this.show(100);
+			return;
+		}
+		int percentage = (int) (100 * ((double) count / this.total));
+		if(percentage <= this.lastPercentage)
+		{
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long last = this.lastUpdate.get();
+		// otherwise only the thread winning the slot
+		if(now - last >= this.minMillis && this.lastUpdate.compareAndSet(last, now))
+		{
+			this.show(percentage);
+		}
+	}
+
+	/**
+	 * Show percentage unless a larger one was already shown (e.g., by a
+	 * thread that counted later but wrote first).
+	 */
+	private synchronized void show(int percentage)
+	{
+		if(percentage > this.lastPercentage)
+		{
+			this.lastPercentage = percentage;
+			JEXStatics.statusBar.setProgressPercentage(percentage);
+		}
+	}
+
+	public int getDone()
+	{
+		return this.done.get();
+	}
+}
@@ -0,0 +1,406 @@
+package plugins.projectionHelpers;
+
+import Database.SingleUserDatabase.JEXWriter;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jex.statics.JEXStatics;
+import logs.Logs;
+import plugins.parallelHelpers.ParallelUtility;
+
+/**
+ * Projections of a long list of image files (e.g., all the fields of a plate
+ * for a calibration image) computed on all cores.
+ *
+ * Mean and pseudo median projections split the files into one contiguous
+ * subset per worker, each worker reducing its subset into its own (double)
+ * accumulator, and the accumulators are merged at the end.
+ *
+ * The exact median projection streams the frames once into a spill file per
+ * band of rows (only a few rows of every frame are in memory at once) and
+ * then takes the median of each pixel band by band, so the median of
+ * thousands of frames doesn't have to fit in memory.
+ *
+ * The median of an even number of values is the mean of the two middle ones.
+ *
+ */
+public class ParallelProjection {
+
+	/**
+	 * Pixels gathered at once when reading the columns of a band (one cache
+	 * line of floats).
+	 */
+	private static final int GATHER = 16;
+
+	private static final int READ_CHUNK = 1 << 20;
+
+	/**
+	 * @return the mean of the files or null if it couldn't be computed
+	 */
+	public static FloatProcessor getMeanProjection(final String[] files)
+	{
+		if(files.length == 0)
+		{
+			return null;
+		}
+		final ImageProcessor first = new ImagePlus(files[0]).getProcessor();
+		final int n = first.getWidth() * first.getHeight();
+		final AtomicInteger done = new AtomicInteger(0);
+		int[] bounds = ParallelUtility.getBands(files.length, 1);
+		final double[][] sums = new double[bounds.length - 1][];
+		List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+		for (int b = 0; b < bounds.length - 1; b++)
+		{
+			final int worker = b, start = bounds[b], end = bounds[b + 1];
+			tasks.add(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() throws Exception
+				{
+					double[] sum = new double[n];
+					for (int i = start; i < end; i++)
+					{
+						add(sum, i == 0 ? first : new ImagePlus(files[i]).getProcessor(), n);
+						updateProgress(done.incrementAndGet(), files.length, 0, 100);
+					}
+					sums[worker] = sum;
+					return true;
+				}
+			});
+		}
+		if(!ParallelUtility.invokeAll(tasks))
+		{
+			return null;
+		}
+		return toProcessor(merge(sums), first.getWidth(), first.getHeight(), files.length);
+	}
+
+	/**
+	 * Mean of the medians of consecutive groups of groupSize files (the last
+	 * group can be smaller).
+	 *
+	 * @return the projection or null if it couldn't be computed
+	 */
+	public static FloatProcessor getPseudoMedianProjection(final String[] files, final int groupSize)
+	{
+		if(files.length == 0 || groupSize < 1)
+		{
+			return null;
+		}
+		final ImageProcessor first = new ImagePlus(files[0]).getProcessor();
+		final int width = first.getWidth(), height = first.getHeight();
+		final int groups = (files.length + groupSize - 1) / groupSize;
+		final AtomicInteger done = new AtomicInteger(0);
+		int[] bounds = ParallelUtility.getBands(groups, 1);
+		final double[][] sums = new double[bounds.length - 1][];
+		List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+		for (int b = 0; b < bounds.length - 1; b++)
+		{
+			final int worker = b, start = bounds[b], end = bounds[b + 1];
+			tasks.add(new Callable<Boolean>() {
+
+				@Override
+				public Boolean call() throws Exception
+				{
+					double[] sum = new double[width * height];
+					for (int g = start; g < end; g++)
+					{
+						int from = g * groupSize, to = Math.min(files.length, from + groupSize);
+						float[][] frames = new float[to - from][];
+						for (int i = from; i < to; i++)
+						{
+							frames[i - from] = toFloat(i == 0 ? first : new ImagePlus(files[i]).getProcessor(), width * height);
+						}
+						float[] column = new float[frames.length];
+						for (int p = 0; p < sum.length; p++)
+						{
+							for (int f = 0; f < frames.length; f++)
+							{
+								column[f] = frames[f][p];
+							}
+							sum[p] = sum[p] + median(column, column.length);
+						}
+						updateProgress(done.addAndGet(to - from), files.length, 0, 100);
+					}
+					sums[worker] = sum;
+					return true;
+				}
+			});
+		}
+		if(!ParallelUtility.invokeAll(tasks))
+		{
+			return null;
+		}
+		return toProcessor(merge(sums), width, height, groups);
+	}
+
+	/**
+	 * Exact per pixel median of all the files, computed out of core using
+	 * spill files in the database temp folder that are deleted afterward.
+	 *
+	 * @return the projection or null if it couldn't be computed
+	 */
+	public static FloatProcessor getMedianProjection(final String[] files) throws IOException
+	{
+		if(files.length == 0)
+		{
+			return null;
+		}
+		final ImageProcessor first = new ImagePlus(files[0]).getProcessor();
+		final int width = first.getWidth(), height = first.getHeight();
+		final int frames = files.length;
+
+		// Bands small enough that one band of every frame fits in memory on
+		// every core at once
+		long budget = Runtime.getRuntime().maxMemory() / (4L * ParallelUtility.getNumberOfProcessors());
+		long bandPixels = Math.min(budget / (4L * frames), Integer.MAX_VALUE / frames);
+		final int bandRows = (int) Math.max(1, Math.min(height, bandPixels / width));
+		final int bands = (height + bandRows - 1) / bandRows;
+
+		final File[] spills = new File[bands];
+		final RandomAccessFile[] raf = new RandomAccessFile[bands];
+		final FloatProcessor ret = new FloatProcessor(width, height);
+		try
+		{
+			for (int b = 0; b < bands; b++)
+			{
+				spills[b] = new File(JEXWriter.getDatabaseFolder() + File.separator + JEXWriter.getUniqueRelativeTempPath("bin"));
+				raf[b] = new RandomAccessFile(spills[b], "rw");
+			}
+
+			// Pass 1: write the rows of each band of frame f at slot f of the
+			// band's spill file
+			final AtomicInteger done = new AtomicInteger(0);
+			int[] bounds = ParallelUtility.getBands(frames, 1);
+			List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+			for (int w = 0; w < bounds.length - 1; w++)
+			{
+				final int start = bounds[w], end = bounds[w + 1];
+				tasks.add(new Callable<Boolean>() {
+
+					@Override
+					public Boolean call() throws Exception
+					{
+						ByteBuffer buffer = ByteBuffer.allocateDirect(4 * bandRows * width);
+						for (int f = start; f < end; f++)
+						{
+							float[] pixels = toFloat(f == 0 ? first : new ImagePlus(files[f]).getProcessor(), width * height);
+							for (int b = 0; b < bands; b++)
+							{
+								int offset = b * bandRows * width;
+								int length = Math.min(height - b * bandRows, bandRows) * width;
+								buffer.clear();
+								buffer.asFloatBuffer().put(pixels, offset, length);
+								buffer.limit(4 * length);
+								FileChannel channel = raf[b].getChannel();
+								long position = 4L * f * length;
+								while (buffer.hasRemaining())
+								{
+									position = position + channel.write(buffer, position);
+								}
+							}
+							updateProgress(done.incrementAndGet(), frames, 0, 50);
+						}
+						return true;
+					}
+				});
+			}
+			if(!ParallelUtility.invokeAll(tasks))
+			{
+				return null;
+			}
+
+			// Pass 2: median of each pixel, one band per task
+			done.set(0);
+			tasks.clear();
+			final float[] out = (float[]) ret.getPixels();
+			for (int b = 0; b < bands; b++)
+			{
+				final int band = b;
+				tasks.add(new Callable<Boolean>() {
+
+					@Override
+					public Boolean call() throws Exception
+					{
+						int offset = band * bandRows * width;
+						int length = Math.min(height - band * bandRows, bandRows) * width;
+						float[] data = read(raf[band].getChannel(), frames * length);
+						float[][] columns = new float[GATHER][frames];
+						for (int p = 0; p < length; p = p + GATHER)
+						{
+							int count = Math.min(GATHER, length - p);
+							for (int f = 0; f < frames; f++)
+							{
+								int i = f * length + p;
+								for (int j = 0; j < count; j++)
+								{
+									columns[j][f] = data[i + j];
+								}
+							}
+							for (int j = 0; j < count; j++)
+							{
+								out[offset + p + j] = (float) median(columns[j], frames);
+							}
+						}
+						updateProgress(done.incrementAndGet(), bands, 50, 50);
+						return true;
+					}
+				});
+			}
+			if(!ParallelUtility.invokeAll(tasks))
+			{
+				return null;
+			}
+		}
+		finally
+		{
+			for (int b = 0; b < bands; b++)
+			{
+				if(raf[b] != null)
+				{
+					raf[b].close();
+				}
+				if(spills[b] != null && !spills[b].delete())
+				{
+					Logs.log("Couldn't delete spill file " + spills[b].getPath(), Logs.ERROR, ParallelProjection.class);
+				}
+			}
+		}
+		ret.resetMinAndMax();
+		return ret;
+	}
+
+	private static float[] read(FileChannel channel, int count) throws IOException
+	{
+		float[] ret = new float[count];
+		ByteBuffer buffer = ByteBuffer.allocateDirect(READ_CHUNK);
+		long position = 0;
+		int k = 0;
+		while (k < count)
+		{
+			buffer.clear();
+			buffer.limit(Math.min(READ_CHUNK, 4 * (count - k)));
+			while (buffer.hasRemaining())
+			{
+				int read = channel.read(buffer, position);
+				if(read < 0)
+				{
+					throw new IOException("Spill file is shorter than expected.");
+				}
+				position = position + read;
+			}
+			buffer.flip();
+			FloatBuffer floats = buffer.asFloatBuffer();
+			int length = floats.remaining();
+			floats.get(ret, k, length);
+			k = k + length;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the median of the first count values of a (reordered)
+	 */
+	private static double median(float[] a, int count)
+	{
+		Arrays.sort(a, 0, count);
+		int middle = count / 2;
+		if(count % 2 == 0)
+		{
+			return (a[middle - 1] + a[middle]) / 2f;
+		}
+		return a[middle];
+	}
+
+	private static float[] toFloat(ImageProcessor ip, int n)
+	{
+		checkSize(ip, n);
+		if(ip.getCalibrationTable() == null && ip.getPixels() instanceof float[])
+		{
+			return (float[]) ip.getPixels();
+		}
+		float[] ret = new float[n];
+		Object pixels = ip.getPixels();
+		if(ip.getCalibrationTable() == null && pixels instanceof short[])
+		{
+			short[] p = (short[]) pixels;
+			for (int i = 0; i < n; i++)
+			{
+				ret[i] = p[i] & 0xffff;
+			}
+		}
+		else if(ip.getCalibrationTable() == null && pixels instanceof byte[])
+		{
+			byte[] p = (byte[]) pixels;
+			for (int i = 0; i < n; i++)
+			{
+				ret[i] = p[i] & 0xff;
+			}
+		}
+		else
+		{
+			ret = (float[]) ip.convertToFloat().getPixels();
+		}
+		return ret;
+	}
+
+	private static void add(double[] sum, ImageProcessor ip, int n)
+	{
+		float[] p = toFloat(ip, n);
+		for (int i = 0; i < n; i++)
+		{
+			sum[i] = sum[i] + p[i];
+		}
+	}
+
+	private static void checkSize(ImageProcessor ip, int n)
+	{
+		if(ip == null || ip.getWidth() * ip.getHeight() != n)
+		{
+			throw new IllegalArgumentException("All images must have the same size.");
+		}
+	}
+
+	private static double[] merge(double[][] sums)
+	{
+		double[] ret = sums[0];
+		for (int w = 1; w < sums.length; w++)
+		{
+			for (int i = 0; i < ret.length; i++)
+			{
+				ret[i] = ret[i] + sums[w][i];
+			}
+		}
+		return ret;
+	}
+
+	private static FloatProcessor toProcessor(double[] sum, int width, int height, int count)
+	{
+		float[] pixels = new float[sum.length];
+		for (int i = 0; i < sum.length; i++)
+		{
+			pixels[i] = (float) (sum[i] / count);
+		}
+		FloatProcessor ret = new FloatProcessor(width, height, pixels, null);
+		ret.resetMinAndMax();
+		return ret;
+	}
+
+	private static void updateProgress(int done, int total, int start, int range)
+	{
+		JEXStatics.statusBar.setProgressPercentage(start + (int) ((long) range * done / total));
+	}
+}
@@ -0,0 +1,416 @@
+package plugins.thresholdHelpers;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+
+import miscellaneous.StatisticsUtility;
+
+/**
+ * Mean, median, mode and MAD of the pixels of an image without copying them
+ * to a double[] and sorting it.
+ *
+ * 8- and 16-bit pixels (or float pixels that all hold such integer values,
+ * e.g. the pixels in a roi of a 16-bit image) are counted in a single
+ * 65536-bin histogram, from which the order statistics (including the median
+ * of the distances to a center for the MAD) are read in linear time. Other
+ * float pixels are selected with a histogram over their range, sorting only
+ * the values of the bin holding the wanted rank, so the results are exact.
+ *
+ * The results follow the conventions of StatisticsUtility (MAD scaling,
+ * median of an even number of values, which of tied modes comes first),
+ * which are read from StatisticsUtility itself once.
+ *
+ */
+public class HistogramStatistics {
+
+	private static final int BINS = 65536;
+
+	private static final double MAD_SCALE;
+	private static final double EVEN_MEDIAN_WEIGHT;
+	private static final boolean LAST_MODE;
+	static
+	{
+		MAD_SCALE = StatisticsUtility.mad(0, new double[] { 1 });
+		EVEN_MEDIAN_WEIGHT = StatisticsUtility.median(new double[] { 0, 1 });
+		LAST_MODE = StatisticsUtility.modes(new double[] { 0, 0, 1, 1 })[0] == 1;
+	}
+
+	// counts of each integer value, or null for float values
+	private final int[] counts;
+	private final float[] values;
+	private final int n;
+
+	private HistogramStatistics(int[] counts, float[] values, int n)
+	{
+		this.counts = counts;
+		this.values = values;
+		this.n = n;
+	}
+
+	/**
+	 * @return the statistics of all the pixels of ip (as converted by
+	 *         convertToFloat)
+	 */
+	public static HistogramStatistics of(ImageProcessor ip)
+	{
+		if((ip instanceof ByteProcessor || ip instanceof ShortProcessor) && ip.getCalibrationTable() == null)
+		{
+			int[] counts = new int[BINS];
+			Object pixels = ip.getPixels();
+			int n = ip.getWidth() * ip.getHeight();
+			if(pixels instanceof byte[])
+			{
+				byte[] p = (byte[]) pixels;
+				for (int i = 0; i < n; i++)
+				{
+					counts[p[i] & 0xff]++;
+				}
+			}
+			else
+			{
+				short[] p = (short[]) pixels;
+				for (int i = 0; i < n; i++)
+				{
+					counts[p[i] & 0xffff]++;
+				}
+			}
+			return new HistogramStatistics(counts, null, n);
+		}
+		return of((float[]) ip.convertToFloat().getPixels());
+	}
+
+	/**
+	 * @return the statistics of the pixels of ip (as converted by
+	 *         convertToFloat) within the spans of a roi, read straight from
+	 *         the image (8- and 16-bit pixels aren't copied at all)
+	 */
+	public static HistogramStatistics of(ImageProcessor ip, RoiSpans roi)
+	{
+		int width = ip.getWidth(), height = ip.getHeight();
+		int[] spans = roi.getSpans();
+		Object pixels = ip.getPixels();
+		boolean integer = (ip instanceof ByteProcessor || ip instanceof ShortProcessor) && ip.getCalibrationTable() == null;
+		int[] counts = integer ? new int[BINS] : null;
+		float[] values = integer ? null : new float[roi.getCount(width, height)];
+		float[] floats = integer ? null : (float[]) ip.convertToFloat().getPixels();
+		int n = 0;
+		for (int s = 0; s < spans.length; s = s + 3)
+		{
+			int y = spans[s];
+			if(y < 0 || y >= height)
+			{
+				continue;
+			}
+			int from = y * width + Math.max(0, spans[s + 1]);
+			int to = y * width + Math.min(width, spans[s + 2]);
+			if(pixels instanceof byte[] && integer)
+			{
+				byte[] p = (byte[]) pixels;
+				for (int i = from; i < to; i++)
+				{
+					counts[p[i] & 0xff]++;
+				}
+			}
+			else if(integer)
+			{
+				short[] p = (short[]) pixels;
+				for (int i = from; i < to; i++)
+				{
+					counts[p[i] & 0xffff]++;
+				}
+			}
+			else
+			{
+				for (int i = from; i < to; i++)
+				{
+					values[n + i - from] = floats[i];
+				}
+			}
+			n = n + Math.max(0, to - from);
+		}
+		if(integer)
+		{
+			return new HistogramStatistics(counts, null, n);
+		}
+		return of(values);
+	}
+
+	/**
+	 * @return the statistics of the values counted in counts (the count of
+	 *         each value from 0, e.g. from TiffHistogramReader)
+	 */
+	public static HistogramStatistics ofCounts(int[] counts)
+	{
+		int[] bins = counts.length == BINS ? counts : Arrays.copyOf(counts, BINS);
+		int n = 0;
+		for (int c : bins)
+		{
+			n = n + c;
+		}
+		return new HistogramStatistics(bins, null, n);
+	}
+
+	/**
+	 * @return the statistics of pixels (kept, not copied, so don't modify
+	 *         them while using the returned object)
+	 */
+	public static HistogramStatistics of(float[] pixels)
+	{
+		int[] counts = new int[BINS];
+		for (float f : pixels)
+		{
+			int v = (int) f;
+			if(v != f || v < 0 || v >= BINS)
+			{
+				return new HistogramStatistics(null, pixels, pixels.length);
+			}
+			counts[v]++;
+		}
+		return new HistogramStatistics(counts, null, pixels.length);
+	}
+
+	public int getCount()
+	{
+		return this.n;
+	}
+
+	public double getMean()
+	{
+		if(this.n == 0)
+		{
+			return Double.NaN;
+		}
+		double sum = 0;
+		if(this.counts != null)
+		{
+			for (int v = 0; v < BINS; v++)
+			{
+				sum = sum + ((double) v) * this.counts[v];
+			}
+		}
+		else
+		{
+			for (float f : this.values)
+			{
+				sum = sum + f;
+			}
+		}
+		return sum / this.n;
+	}
+
+	public double getMedian()
+	{
+		if(this.n == 0)
+		{
+			return Double.NaN;
+		}
+		if(this.n % 2 == 1)
+		{
+			return this.select(this.n / 2, 0, false);
+		}
+		return even(this.select(this.n / 2 - 1, 0, false), this.select(this.n / 2, 0, false));
+	}
+
+	/**
+	 * @return the most frequent value (modes[0] of StatisticsUtility.modes)
+	 */
+	public double getMode()
+	{
+		if(this.n == 0)
+		{
+			return Double.NaN;
+		}
+		if(this.counts != null)
+		{
+			int mode = 0;
+			for (int v = 1; v < BINS; v++)
+			{
+				if(this.counts[v] > this.counts[mode] || (LAST_MODE && this.counts[v] == this.counts[mode]))
+				{
+					mode = v;
+				}
+			}
+			return mode;
+		}
+		float[] sorted = this.values.clone();
+		Arrays.sort(sorted);
+		double mode = sorted[0];
+		int modeCount = 0;
+		int i = 0;
+		while (i < sorted.length)
+		{
+			int j = i + 1;
+			while (j < sorted.length && sorted[j] == sorted[i])
+			{
+				j++;
+			}
+			if(j - i > modeCount || (LAST_MODE && j - i == modeCount))
+			{
+				mode = sorted[i];
+				modeCount = j - i;
+			}
+			i = j;
+		}
+		return mode;
+	}
+
+	/**
+	 * @return the MAD of the values about center (as StatisticsUtility.mad)
+	 */
+	public double getMad(double center)
+	{
+		if(this.n == 0 || Double.isNaN(center))
+		{
+			return Double.NaN;
+		}
+		double median;
+		if(this.n % 2 == 1)
+		{
+			median = this.select(this.n / 2, center, true);
+		}
+		else
+		{
+			median = even(this.select(this.n / 2 - 1, center, true), this.select(this.n / 2, center, true));
+		}
+		return MAD_SCALE * median;
+	}
+
+	private static double even(double lower, double upper)
+	{
+		if(EVEN_MEDIAN_WEIGHT == 0.5)
+		{
+			return (lower + upper) / 2;
+		}
+		return lower + EVEN_MEDIAN_WEIGHT * (upper - lower);
+	}
+
+	/**
+	 * @return the k-th smallest (from 0) of the values or, if distance, of
+	 *         their distances to center
+	 */
+	private double select(int k, double center, boolean distance)
+	{
+		if(this.counts != null)
+		{
+			return distance ? this.selectDistance(k, center) : this.selectValue(k);
+		}
+
+		// Range (NaN ranks above every other value, as sorted by Arrays.sort)
+		double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+		int nans = 0;
+		for (float f : this.values)
+		{
+			double d = distance ? Math.abs(f - center) : f;
+			if(Double.isNaN(d))
+			{
+				nans++;
+				continue;
+			}
+			if(d < lo)
+			{
+				lo = d;
+			}
+			if(d > hi)
+			{
+				hi = d;
+			}
+		}
+		if(k >= this.n - nans)
+		{
+			return Double.NaN;
+		}
+		if(!(hi > lo))
+		{
+			return lo;
+		}
+
+		// Bin holding the rank
+		double scale = BINS / (hi - lo);
+		int[] hist = new int[BINS];
+		for (float f : this.values)
+		{
+			double d = distance ? Math.abs(f - center) : f;
+			if(!Double.isNaN(d))
+			{
+				hist[Math.min(BINS - 1, (int) ((d - lo) * scale))]++;
+			}
+		}
+		int bin = 0, below = 0;
+		while (below + hist[bin] <= k)
+		{
+			below = below + hist[bin];
+			bin++;
+		}
+
+		// Exact value within that bin
+		double[] inBin = new double[hist[bin]];
+		int count = 0;
+		for (float f : this.values)
+		{
+			double d = distance ? Math.abs(f - center) : f;
+			if(!Double.isNaN(d) && Math.min(BINS - 1, (int) ((d - lo) * scale)) == bin)
+			{
+				inBin[count] = d;
+				count++;
+			}
+		}
+		Arrays.sort(inBin);
+		return inBin[k - below];
+	}
+
+	private double selectValue(int k)
+	{
+		int below = 0;
+		for (int v = 0; v < BINS; v++)
+		{
+			below = below + this.counts[v];
+			if(below > k)
+			{
+				return v;
+			}
+		}
+		return BINS - 1;
+	}
+
+	private double selectDistance(int k, double center)
+	{
+		// Walk away from center on both sides, nearest values first
+		int left = (int) Math.max(-1, Math.min(BINS - 1, Math.floor(center)));
+		int right = (int) Math.max(0, Math.min(BINS, Math.floor(center) + 1));
+		int below = 0;
+		while (true)
+		{
+			while (left >= 0 && this.counts[left] == 0)
+			{
+				left--;
+			}
+			while (right < BINS && this.counts[right] == 0)
+			{
+				right++;
+			}
+			double dLeft = left >= 0 ? Math.abs(left - center) : Double.POSITIVE_INFINITY;
+			double dRight = right < BINS ? Math.abs(right - center) : Double.POSITIVE_INFINITY;
+			if(dLeft <= dRight)
+			{
+				below = below + this.counts[left];
+				if(below > k)
+				{
+					return dLeft;
+				}
+				left--;
+			}
+			else
+			{
+				below = below + this.counts[right];
+				if(below > k)
+				{
+					return dRight;
+				}
+				right++;
+			}
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package plugins.thresholdHelpers;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import image.roi.IdPoint;
+import image.roi.ROIPlus;
+
+import java.awt.Rectangle;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The pixels of an area roi as horizontal runs (y, first x, last x + 1),
+ * made once from the ImageJ mask of the roi so the pixels inside can be
+ * visited row by row without building a mask or a list of pixel values for
+ * each image.
+ *
+ * Spans are cached by the content of the roi (type and points), so the
+ * images of an object sharing the same roi (e.g., the same polygon on every
+ * plane of a stitched slide) share the same spans. Spans are read-only once
+ * made.
+ *
+ */
+public class RoiSpans {
+
+	private static final int CACHED_SPANS = 32;
+
+	private static final Map<String,RoiSpans> cache = new LinkedHashMap<String,RoiSpans>(CACHED_SPANS, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,RoiSpans> eldest)
+		{
+			return this.size() > CACHED_SPANS;
+		}
+	};
+
+	// y, x0, x1 of each span, by increasing y and x0
+	private final int[] spans;
+
+	private RoiSpans(int[] spans)
+	{
+		this.spans = spans;
+	}
+
+	/**
+	 * @return the spans of roi, or null if roi isn't an area (e.g., points or
+	 *         lines)
+	 */
+	public static RoiSpans get(ROIPlus roi)
+	{
+		if(roi == null || roi.getPointList() == null || roi.getPointList().size() == 0)
+		{
+			return null;
+		}
+		StringBuilder key = new StringBuilder();
+		key.append(roi.type);
+		for (IdPoint p : roi.getPointList())
+		{
+			key.append(';').append(p.x).append(',').append(p.y);
+		}
+		String k = key.toString();
+		synchronized(cache)
+		{
+			RoiSpans ret = cache.get(k);
+			if(ret != null)
+			{
+				return ret;
+			}
+		}
+		// Made outside the lock; threads racing for the same roi make
+		// identical spans
+		RoiSpans ret = make(roi.getRoi());
+		if(ret != null)
+		{
+			synchronized(cache)
+			{
+				cache.put(k, ret);
+			}
+		}
+		return ret;
+	}
+
+	private static RoiSpans make(Roi roi)
+	{
+		if(roi == null || !roi.isArea())
+		{
+			return null;
+		}
+		Rectangle r = roi.getBounds();
+		ImageProcessor mask = roi.getMask();
+		if(mask == null)
+		{
+			// rectangle
+			int[] spans = new int[3 * r.height];
+			for (int j = 0; j < r.height; j++)
+			{
+				spans[3 * j] = r.y + j;
+				spans[3 * j + 1] = r.x;
+				spans[3 * j + 2] = r.x + r.width;
+			}
+			return new RoiSpans(spans);
+		}
+		byte[] m = (byte[]) mask.getPixels();
+		int[] spans = new int[3 * 16];
+		int n = 0;
+		for (int j = 0; j < r.height; j++)
+		{
+			int row = j * r.width;
+			int i = 0;
+			while (i < r.width)
+			{
+				while (i < r.width && m[row + i] == 0)
+				{
+					i++;
+				}
+				if(i == r.width)
+				{
+					break;
+				}
+				int start = i;
+				while (i < r.width && m[row + i] != 0)
+				{
+					i++;
+				}
+				if(n + 3 > spans.length)
+				{
+					int[] grown = new int[2 * spans.length];
+					System.arraycopy(spans, 0, grown, 0, n);
+					spans = grown;
+				}
+				spans[n] = r.y + j;
+				spans[n + 1] = r.x + start;
+				spans[n + 2] = r.x + i;
+				n = n + 3;
+			}
+		}
+		int[] trimmed = new int[n];
+		System.arraycopy(spans, 0, trimmed, 0, n);
+		return new RoiSpans(trimmed);
+	}
+
+	/**
+	 * @return the number of pixels of the roi within a width x height image
+	 */
+	public int getCount(int width, int height)
+	{
+		int ret = 0;
+		for (int s = 0; s < this.spans.length; s = s + 3)
+		{
+			int y = this.spans[s];
+			if(y < 0 || y >= height)
+			{
+				continue;
+			}
+			int x0 = Math.max(0, this.spans[s + 1]), x1 = Math.min(width, this.spans[s + 2]);
+			if(x1 > x0)
+			{
+				ret = ret + x1 - x0;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the spans (y, x0, x1 with x1 exclusive for each span, not
+	 *         clipped to any image), shared so don't modify
+	 */
+	public int[] getSpans()
+	{
+		return this.spans;
+	}
+}
@@ -0,0 +1,74 @@
+package plugins.thresholdHelpers;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import jex.utilities.FunctionUtility;
+
+/**
+ * Black and white 8-bit mask of an image for a threshold made in one pass
+ * from the source pixels, i.e., without the float copy, the thresholded float
+ * image and its conversion by FunctionUtility.makeImageToSave.
+ *
+ * The mask values below, at and above the threshold are those of
+ * FunctionUtility.imThresh(ip, threshold, false) followed by
+ * makeImageToSave(ip, "false", 8), read from them once.
+ *
+ */
+public class ThresholdMask {
+
+	private static final byte BELOW, AT, ABOVE;
+	static
+	{
+		FloatProcessor probe = new FloatProcessor(3, 1, new float[] { 0, 1, 2 }, null);
+		FunctionUtility.imThresh(probe, 1, false);
+		byte[] mask = (byte[]) FunctionUtility.makeImageToSave(probe, "false", 8).getProcessor().getPixels();
+		BELOW = mask[0];
+		AT = mask[1];
+		ABOVE = mask[2];
+	}
+
+	/**
+	 * @return the mask of ip (as converted by convertToFloat) for threshold
+	 */
+	public static ByteProcessor make(ImageProcessor ip, double threshold)
+	{
+		int n = ip.getWidth() * ip.getHeight();
+		byte[] mask = new byte[n];
+		Object pixels = ip.getPixels();
+		if(ip.getCalibrationTable() != null || !(pixels instanceof byte[] || pixels instanceof short[] || pixels instanceof float[]))
+		{
+			pixels = ip.convertToFloat().getPixels();
+		}
+		if(pixels instanceof byte[])
+		{
+			byte[] p = (byte[]) pixels;
+			for (int i = 0; i < n; i++)
+			{
+				mask[i] = value(p[i] & 0xff, threshold);
+			}
+		}
+		else if(pixels instanceof short[])
+		{
+			short[] p = (short[]) pixels;
+			for (int i = 0; i < n; i++)
+			{
+				mask[i] = value(p[i] & 0xffff, threshold);
+			}
+		}
+		else
+		{
+			float[] p = (float[]) pixels;
+			for (int i = 0; i < n; i++)
+			{
+				mask[i] = value(p[i], threshold);
+			}
+		}
+		return new ByteProcessor(ip.getWidth(), ip.getHeight(), mask, null);
+	}
+
+	private static byte value(double v, double threshold)
+	{
+		return v > threshold ? ABOVE : (v == threshold ? AT : BELOW);
+	}
+}
@@ -0,0 +1,237 @@
+package plugins.tiffHelpers;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import Database.SingleUserDatabase.JEXWriter;
+
+/**
+ * Writes grayscale planes as uncompressed, single-strip, little-endian TIFF
+ * files straight from the pixel array of the processor.
+ *
+ * The header, IFD and pixels are assembled in a direct buffer that is reused
+ * by the calling thread, the file is preallocated to its final length, and
+ * the whole buffer is written through a FileChannel in one go. This avoids
+ * the stream and per-row overhead of ImageJ's FileSaver when saving many
+ * planes. The files are readable by ImageJ (and thus JEX) like any other
+ * TIFF.
+ *
+ * Only 8-bit, 16-bit and 32-bit float processors are supported (see
+ * isSupported).
+ *
+ */
+public class DirectTiffWriter {
+
+	public static final short TAG_IMAGE_WIDTH = 256, TAG_IMAGE_LENGTH = 257, TAG_BITS_PER_SAMPLE = 258, TAG_COMPRESSION = 259, TAG_PHOTOMETRIC = 262, TAG_IMAGE_DESCRIPTION = 270, TAG_STRIP_OFFSETS = 273, TAG_SAMPLES_PER_PIXEL = 277, TAG_ROWS_PER_STRIP = 278, TAG_STRIP_BYTE_COUNTS = 279, TAG_SAMPLE_FORMAT = 339;
+	public static final short TYPE_SHORT = 3, TYPE_LONG = 4;
+	public static final short SAMPLE_FORMAT_UINT = 1, SAMPLE_FORMAT_FLOAT = 3;
+
+	/**
+	 * Number of IFD entries written for each plane.
+	 */
+	public static final int ENTRIES = 10;
+
+	/**
+	 * Size of the header plus the IFD of a plane, rounded up to a multiple of 8
+	 * so the pixels start aligned.
+	 */
+	public static final int PIXEL_OFFSET = align(8 + ifdSize(ENTRIES));
+
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>();
+
+	public static boolean isSupported(ImageProcessor ip)
+	{
+		return ip instanceof ByteProcessor || ip instanceof ShortProcessor || ip instanceof FloatProcessor;
+	}
+
+	/**
+	 * Save the plane to a new unique file in the temp folder of the database
+	 * (like JEXWriter.saveImage).
+	 *
+	 * @param sync force the contents of the file to the disk before returning
+	 * @return the path of the saved file
+	 */
+	public static String saveImage(ImageProcessor ip, boolean sync) throws IOException
+	{
+		String path = JEXWriter.getDatabaseFolder() + File.separator + JEXWriter.getUniqueRelativeTempPath("tif");
+		write(ip, new File(path), sync);
+		return path;
+	}
+
+	/**
+	 * Write the plane to f, replacing any existing file.
+	 *
+	 * @param sync force the contents of the file to the disk before returning
+	 */
+	public static void write(ImageProcessor ip, File f, boolean sync) throws IOException
+	{
+		if(!isSupported(ip))
+		{
+			throw new IOException("Direct TIFF writing isn't supported for " + ip.getClass().getSimpleName());
+		}
+		int bytesPerPixel = getBytesPerPixel(ip);
+		long pixelBytes = (long) ip.getWidth() * ip.getHeight() * bytesPerPixel;
+		if(PIXEL_OFFSET + pixelBytes > Integer.MAX_VALUE)
+		{
+			throw new IOException("Plane is too large to write as a single strip TIFF.");
+		}
+
+		ByteBuffer buffer = getBuffer((int) (PIXEL_OFFSET + pixelBytes));
+		putHeader(buffer, 8);
+		putIfd(buffer, ip.getWidth(), ip.getHeight(), 8 * bytesPerPixel, ip instanceof FloatProcessor ? SAMPLE_FORMAT_FLOAT : SAMPLE_FORMAT_UINT, PIXEL_OFFSET, pixelBytes, 0);
+		buffer.position(PIXEL_OFFSET);
+		putPixels(buffer, ip);
+		buffer.flip();
+
+		writeFully(buffer, f, sync);
+	}
+
+	public static int getBytesPerPixel(ImageProcessor ip)
+	{
+		if(ip instanceof ShortProcessor)
+		{
+			return 2;
+		}
+		if(ip instanceof FloatProcessor)
+		{
+			return 4;
+		}
+		return 1;
+	}
+
+	/**
+	 * @return the number of bytes of an IFD with the given number of entries
+	 */
+	public static int ifdSize(int entries)
+	{
+		return 2 + 12 * entries + 4;
+	}
+
+	public static int align(int offset)
+	{
+		return (offset + 7) & ~7;
+	}
+
+	/**
+	 * Put the little-endian TIFF header pointing at the first IFD.
+	 */
+	public static void putHeader(ByteBuffer buffer, long firstIfd)
+	{
+		buffer.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt((int) firstIfd);
+	}
+
+	/**
+	 * Put the IFD of a single-strip grayscale plane at the current position of
+	 * the buffer.
+	 */
+	public static void putIfd(ByteBuffer buffer, int width, int height, int bitsPerSample, short sampleFormat, long stripOffset, long stripBytes, long nextIfd)
+	{
+		buffer.putShort((short) ENTRIES);
+		putEntry(buffer, TAG_IMAGE_WIDTH, TYPE_LONG, width);
+		putEntry(buffer, TAG_IMAGE_LENGTH, TYPE_LONG, height);
+		putEntry(buffer, TAG_BITS_PER_SAMPLE, TYPE_SHORT, bitsPerSample);
+		putEntry(buffer, TAG_COMPRESSION, TYPE_SHORT, 1);
+		putEntry(buffer, TAG_PHOTOMETRIC, TYPE_SHORT, 1); // BlackIsZero
+		putEntry(buffer, TAG_STRIP_OFFSETS, TYPE_LONG, stripOffset);
+		putEntry(buffer, TAG_SAMPLES_PER_PIXEL, TYPE_SHORT, 1);
+		putEntry(buffer, TAG_ROWS_PER_STRIP, TYPE_LONG, height);
+		putEntry(buffer, TAG_STRIP_BYTE_COUNTS, TYPE_LONG, stripBytes);
+		putEntry(buffer, TAG_SAMPLE_FORMAT, TYPE_SHORT, sampleFormat);
+		buffer.putInt((int) nextIfd);
+	}
+
+	/**
+	 * Put a single valued IFD entry (the value is stored in the entry itself).
+	 */
+	public static void putEntry(ByteBuffer buffer, short tag, short type, long value)
+	{
+		buffer.putShort(tag).putShort(type).putInt(1);
+		if(type == TYPE_SHORT)
+		{
+			buffer.putShort((short) value).putShort((short) 0);
+		}
+		else
+		{
+			buffer.putInt((int) value);
+		}
+	}
+
+	/**
+	 * Put the pixels of the processor at the current position of the buffer
+	 * and advance it past them.
+	 */
+	public static void putPixels(ByteBuffer buffer, ImageProcessor ip)
+	{
+		Object pixels = ip.getPixels();
+		int start = buffer.position();
+		if(pixels instanceof byte[])
+		{
+			buffer.put((byte[]) pixels);
+		}
+		else if(pixels instanceof short[])
+		{
+			short[] s = (short[]) pixels;
+			buffer.asShortBuffer().put(s);
+			buffer.position(start + 2 * s.length);
+		}
+		else
+		{
+			float[] fl = (float[]) pixels;
+			buffer.asFloatBuffer().put(fl);
+			buffer.position(start + 4 * fl.length);
+		}
+	}
+
+	/**
+	 * @return the cleared, little-endian direct buffer of this thread, grown
+	 *         to at least the given capacity and limited to it
+	 */
+	public static ByteBuffer getBuffer(int capacity)
+	{
+		ByteBuffer ret = buffers.get();
+		if(ret == null || ret.capacity() < capacity)
+		{
+			ret = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+			buffers.set(ret);
+		}
+		ret.clear();
+		ret.limit(capacity);
+		return ret;
+	}
+
+	/**
+	 * Preallocate f to the size of the remaining bytes of the buffer and write
+	 * them through a FileChannel.
+	 */
+	public static void writeFully(ByteBuffer buffer, File f, boolean sync) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try
+		{
+			raf.setLength(buffer.remaining());
+			FileChannel channel = raf.getChannel();
+			long position = 0;
+			while (buffer.hasRemaining())
+			{
+				position = position + channel.write(buffer, position);
+			}
+			if(sync)
+			{
+				channel.force(true);
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package plugins.tiffHelpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Counts the pixel values of an uncompressed 8- or 16-bit grayscale TIFF
+ * (e.g., the images saved by JEXWriter) straight from its strips, without
+ * making an ImagePlus or any pixel array.
+ *
+ * Only the first image of the file is read. Files this reader would not read
+ * the way ImageJ does (compressed, color, signed or float samples, WhiteIsZero
+ * or ImageJ calibration functions) are left to ImageJ by returning null.
+ *
+ */
+public class TiffHistogramReader {
+
+	public static final int BINS = 65536;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final int STRIP_CHUNK = 1 << 20;
+
+	/**
+	 * @return the number of pixels of each value (65536 bins) or null if the
+	 *         file isn't an uncompressed 8- or 16-bit grayscale TIFF
+	 */
+	public static int[] read(File f) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try
+		{
+			return read(raf.getChannel());
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	private static int[] read(FileChannel channel) throws IOException
+	{
+		// Header
+		ByteBuffer header = read(channel, 0, 8, ByteOrder.LITTLE_ENDIAN);
+		if(header.get(0) == 'M' && header.get(1) == 'M')
+		{
+			header.order(ByteOrder.BIG_ENDIAN);
+		}
+		else if(header.get(0) != 'I' || header.get(1) != 'I')
+		{
+			return null;
+		}
+		if(header.getShort(2) != 42)
+		{
+			return null;
+		}
+		ByteOrder order = header.order();
+		long ifd = header.getInt(4) & 0xFFFFFFFFL;
+
+		// First IFD
+		int entries = read(channel, ifd, 2, order).getShort(0) & 0xFFFF;
+		ByteBuffer block = read(channel, ifd + 2, 12 * entries, order);
+		long width = -1, height = -1, bits = 1, compression = 1, photometric = -1, samples = 1, sampleFormat = DirectTiffWriter.SAMPLE_FORMAT_UINT;
+		long[] offsets = null, byteCounts = null;
+		for (int i = 0; i < entries; i++)
+		{
+			int start = 12 * i;
+			int tag = block.getShort(start) & 0xFFFF;
+			int type = block.getShort(start + 2);
+			long n = block.getInt(start + 4) & 0xFFFFFFFFL;
+			if(tag == DirectTiffWriter.TAG_STRIP_OFFSETS)
+			{
+				offsets = getValues(channel, block, start, type, n, order);
+			}
+			else if(tag == DirectTiffWriter.TAG_STRIP_BYTE_COUNTS)
+			{
+				byteCounts = getValues(channel, block, start, type, n, order);
+			}
+			else if(tag == DirectTiffWriter.TAG_IMAGE_DESCRIPTION)
+			{
+				// ImageJ calibration function (applied by ImageJ when converting)
+				ByteBuffer text = n > 4 ? read(channel, block.getInt(start + 8) & 0xFFFFFFFFL, (int) n, order) : null;
+				if(text != null && new String(text.array(), ASCII).contains("\ncf="))
+				{
+					return null;
+				}
+			}
+			else
+			{
+				long value = type == DirectTiffWriter.TYPE_SHORT ? block.getShort(start + 8) & 0xFFFF : block.getInt(start + 8) & 0xFFFFFFFFL;
+				if(tag == DirectTiffWriter.TAG_IMAGE_WIDTH)
+				{
+					width = value;
+				}
+				else if(tag == DirectTiffWriter.TAG_IMAGE_LENGTH)
+				{
+					height = value;
+				}
+				else if(tag == DirectTiffWriter.TAG_BITS_PER_SAMPLE)
+				{
+					bits = n == 1 ? value : -1;
+				}
+				else if(tag == DirectTiffWriter.TAG_COMPRESSION)
+				{
+					compression = value;
+				}
+				else if(tag == DirectTiffWriter.TAG_PHOTOMETRIC)
+				{
+					photometric = value;
+				}
+				else if(tag == DirectTiffWriter.TAG_SAMPLES_PER_PIXEL)
+				{
+					samples = value;
+				}
+				else if(tag == DirectTiffWriter.TAG_SAMPLE_FORMAT)
+				{
+					sampleFormat = value;
+				}
+			}
+		}
+		if((bits != 8 && bits != 16) || compression != 1 || photometric != 1 || samples != 1 || sampleFormat != DirectTiffWriter.SAMPLE_FORMAT_UINT || width <= 0 || height <= 0 || offsets == null || byteCounts == null || offsets.length != byteCounts.length)
+		{
+			return null;
+		}
+
+		// Strips
+		int bytesPerPixel = (int) bits / 8;
+		long remaining = width * height;
+		int[] counts = new int[BINS];
+		for (int s = 0; s < offsets.length && remaining > 0; s++)
+		{
+			long position = offsets[s];
+			long stripPixels = Math.min(remaining, byteCounts[s] / bytesPerPixel);
+			while (stripPixels > 0)
+			{
+				int chunkPixels = (int) Math.min(stripPixels, STRIP_CHUNK);
+				ByteBuffer pixels = read(channel, position, chunkPixels * bytesPerPixel, order);
+				if(bytesPerPixel == 1)
+				{
+					for (int i = 0; i < chunkPixels; i++)
+					{
+						counts[pixels.get(i) & 0xFF]++;
+					}
+				}
+				else
+				{
+					for (int i = 0; i < chunkPixels; i++)
+					{
+						counts[pixels.getShort(2 * i) & 0xFFFF]++;
+					}
+				}
+				position = position + chunkPixels * bytesPerPixel;
+				stripPixels = stripPixels - chunkPixels;
+				remaining = remaining - chunkPixels;
+			}
+		}
+		if(remaining > 0)
+		{
+			throw new IOException("TIFF strips end before the last pixel.");
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the SHORT or LONG values of an IFD entry (in the entry itself or
+	 *         at the offset it holds)
+	 */
+	private static long[] getValues(FileChannel channel, ByteBuffer block, int start, int type, long n, ByteOrder order) throws IOException
+	{
+		int size = type == DirectTiffWriter.TYPE_SHORT ? 2 : 4;
+		ByteBuffer values = block;
+		int first = start + 8;
+		if(n * size > 4)
+		{
+			values = read(channel, block.getInt(start + 8) & 0xFFFFFFFFL, (int) (n * size), order);
+			first = 0;
+		}
+		long[] ret = new long[(int) n];
+		for (int i = 0; i < n; i++)
+		{
+			ret[i] = size == 2 ? values.getShort(first + 2 * i) & 0xFFFF : values.getInt(first + 4 * i) & 0xFFFFFFFFL;
+		}
+		return ret;
+	}
+
+	private static ByteBuffer read(FileChannel channel, long position, int bytes, ByteOrder order) throws IOException
+	{
+		ByteBuffer ret = ByteBuffer.allocate(bytes).order(order);
+		while (ret.hasRemaining())
+		{
+			int n = channel.read(ret, position + ret.position());
+			if(n < 0)
+			{
+				throw new IOException("Unexpected end of TIFF file.");
+			}
+		}
+		ret.flip();
+		return ret;
+	}
+}
@@ -0,0 +1,114 @@
+package plugins.importHelpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import loci.common.DataTools;
+
+import org.junit.Test;
+
+/**
+ * Compares the bytes allocated per 16-bit plane by the previous conversion
+ * (DataTools.makeDataArray, one new short[] per plane) and by the pooled
+ * ByteBuffer conversion. The plane bytes themselves are allocated by SCIFIO
+ * in both cases and are left out of the measure.
+ *
+ */
+public class PlaneBufferPoolAllocationTest {
+
+	private static final int WIDTH = 512;
+	private static final int HEIGHT = 512;
+	private static final int PLANES = 200;
+
+	@Test
+	public void testSamePixels()
+	{
+		byte[] bytes = getBytes();
+		for (boolean littleEndian : new boolean[] { true, false })
+		{
+			short[] expected = (short[]) DataTools.makeDataArray(bytes, 2, false, littleEndian);
+			short[] actual = (short[]) PlaneImportPipeline.getProcessor(bytes, WIDTH, HEIGHT, 16, littleEndian, new PlaneBufferPool(1)).getPixels();
+			assertEquals(expected.length, actual.length);
+			for (int i = 0; i < expected.length; i++)
+			{
+				assertEquals(expected[i], actual[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testAllocationPerPlane()
+	{
+		com.sun.management.ThreadMXBean bean = getThreadMXBean();
+		assumeTrue(bean != null);
+
+		byte[] bytes = getBytes();
+		PlaneBufferPool pool = new PlaneBufferPool(1);
+
+		// Warm up both paths (class loading, JIT, first pooled buffer)
+		makeDataArrayPlanes(bytes);
+		pooledPlanes(bytes, pool);
+
+		long id = Thread.currentThread().getId();
+		long start = bean.getThreadAllocatedBytes(id);
+		makeDataArrayPlanes(bytes);
+		long before = (bean.getThreadAllocatedBytes(id) - start) / PLANES;
+
+		start = bean.getThreadAllocatedBytes(id);
+		pooledPlanes(bytes, pool);
+		long after = (bean.getThreadAllocatedBytes(id) - start) / PLANES;
+
+		System.out.println("Bytes allocated per " + WIDTH + "x" + HEIGHT + " 16-bit plane: makeDataArray = " + before + ", PlaneBufferPool = " + after);
+
+		// The old path allocates at least the full short[] per plane
+		assertTrue(before >= 2L * WIDTH * HEIGHT);
+		assertTrue(after < (WIDTH * HEIGHT) / 100);
+	}
+
+	private static void makeDataArrayPlanes(byte[] bytes)
+	{
+		for (int i = 0; i < PLANES; i++)
+		{
+			short[] converted = (short[]) DataTools.makeDataArray(bytes, 2, false, true);
+			new ShortProcessor(WIDTH, HEIGHT, converted, null);
+		}
+	}
+
+	private static void pooledPlanes(byte[] bytes, PlaneBufferPool pool)
+	{
+		for (int i = 0; i < PLANES; i++)
+		{
+			ImageProcessor ip = PlaneImportPipeline.getProcessor(bytes, WIDTH, HEIGHT, 16, true, pool);
+			pool.release(ip);
+		}
+	}
+
+	private static byte[] getBytes()
+	{
+		byte[] bytes = new byte[2 * WIDTH * HEIGHT];
+		new Random(1).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static com.sun.management.ThreadMXBean getThreadMXBean()
+	{
+		if(!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+		{
+			return null;
+		}
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if(!bean.isThreadAllocatedMemorySupported())
+		{
+			return null;
+		}
+		bean.setThreadAllocatedMemoryEnabled(true);
+		return bean;
+	}
+}
@@ -0,0 +1,102 @@
+package plugins.thresholdHelpers;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+import miscellaneous.StatisticsUtility;
+
+import org.junit.Test;
+
+/**
+ * Checks HistogramStatistics against StatisticsUtility, which sorts a copy of
+ * the values, for integer and float pixels including NaN, ties and even
+ * numbers of values.
+ *
+ */
+public class HistogramStatisticsTest {
+
+	private static final double DELTA = 1e-9;
+
+	@Test
+	public void testIntegerValues()
+	{
+		Random r = new Random(1);
+		for (int n = 1; n <= 8; n++)
+		{
+			short[] pixels = new short[n];
+			for (int i = 0; i < n; i++)
+			{
+				// few distinct values so there are ties
+				pixels[i] = (short) (1000 * r.nextInt(4));
+			}
+			check(HistogramStatistics.of(new ShortProcessor(n, 1, pixels, null)), toDoubles(pixels));
+		}
+	}
+
+	@Test
+	public void testFloatValues()
+	{
+		check(new float[] { 0.5f, 2.25f, -1.5f, 7.75f });
+		check(new float[] { 0.5f, 2.25f, -1.5f, 7.75f, 3.5f });
+		check(new float[] { 1.5f, 1.5f, 1.5f, -2.5f, -2.5f, 9.5f });
+		check(new float[] { 2.5f, 2.5f });
+	}
+
+	@Test
+	public void testNaN()
+	{
+		check(new float[] { Float.NaN, 1.5f, 2.5f });
+		check(new float[] { Float.NaN, 1.5f, 2.5f, 0.5f });
+		check(new float[] { Float.NaN, Float.NaN, 1.5f, 2.5f, -0.5f });
+		check(new float[] { Float.NaN, Float.NaN, 1.5f });
+		check(new float[] { 3.5f, Float.NaN, 3.5f, 3.5f });
+		check(new float[] { Float.NaN });
+	}
+
+	@Test
+	public void testRandomFloatValues()
+	{
+		Random r = new Random(2);
+		for (int n = 1; n <= 64; n++)
+		{
+			float[] pixels = new float[n];
+			for (int i = 0; i < n; i++)
+			{
+				pixels[i] = r.nextInt(8) == 0 ? Float.NaN : (float) (100 * r.nextGaussian());
+			}
+			check(pixels);
+		}
+	}
+
+	private static void check(float[] pixels)
+	{
+		double[] values = new double[pixels.length];
+		for (int i = 0; i < pixels.length; i++)
+		{
+			values[i] = pixels[i];
+		}
+		check(HistogramStatistics.of(new FloatProcessor(pixels.length, 1, pixels.clone(), null)), values);
+	}
+
+	private static void check(HistogramStatistics stats, double[] values)
+	{
+		double median = StatisticsUtility.median(values);
+		assertEquals(median, stats.getMedian(), DELTA);
+		assertEquals(StatisticsUtility.mad(median, values), stats.getMad(median), DELTA);
+		assertEquals(StatisticsUtility.mean(values), stats.getMean(), DELTA);
+	}
+
+	private static double[] toDoubles(short[] pixels)
+	{
+		double[] ret = new double[pixels.length];
+		for (int i = 0; i < pixels.length; i++)
+		{
+			ret[i] = pixels[i] & 0xffff;
+		}
+		return ret;
+	}
+}